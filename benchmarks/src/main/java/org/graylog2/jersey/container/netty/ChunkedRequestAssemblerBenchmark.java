@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares copying request chunks into one dynamic buffer, as the assembler used to do, with joining them in a
+ * composite buffer. All variants read the assembled body through a stream afterwards, like Jersey does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkedRequestAssemblerBenchmark {
+    @Param({"16", "256", "4096"})
+    public int chunkCount;
+
+    @Param({"512", "8192"})
+    public int chunkSize;
+
+    private final ChunkedRequestAssembler composite = new ChunkedRequestAssembler(Integer.MAX_VALUE);
+    private final ChunkedRequestAssembler consolidating = new ChunkedRequestAssembler(0);
+    private final byte[] readBuffer = new byte[8192];
+    private List<ChannelBuffer> chunks;
+
+    @Setup
+    public void setUp() {
+        chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            final byte[] content = new byte[chunkSize];
+            content[0] = (byte) i;
+            chunks.add(ChannelBuffers.wrappedBuffer(content));
+        }
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        final ChannelBuffer dstBuffer = ChannelBuffers.dynamicBuffer();
+        for (ChannelBuffer chunk : chunks) {
+            dstBuffer.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+        }
+        return read(dstBuffer);
+    }
+
+    @Benchmark
+    public long composite() throws IOException {
+        return read(composite.aggregate(chunks));
+    }
+
+    @Benchmark
+    public long consolidated() throws IOException {
+        return read(consolidating.aggregate(chunks));
+    }
+
+    private long read(ChannelBuffer body) throws IOException {
+        final InputStream stream = new ChannelBufferInputStream(body);
+        long length = 0;
+        int read;
+        while ((read = stream.read(readBuffer)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.glassfish.jersey.internal.util.Base64;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures whole requests sent through a {@link NettyContainer} in a pipeline of Netty's local transport, which
+ * bridge the headers, parse basic auth credentials, assemble chunked bodies and write small and large responses.
+ *
+ * Requests are handled by the direct request executor and the local transport delivers messages on the writing
+ * thread, so everything happens on the benchmark thread and the allocations reported by {@code -prof gc} are those
+ * of a request. They include building the request messages, which is what the HTTP decoder would do otherwise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NettyContainerBenchmark {
+    private static final int HEADER_COUNT = 20;
+    private static final String AUTHORIZATION = "Basic " + Base64.encodeAsString("admin:secret");
+
+    @Path("/")
+    public static class BenchmarkResource {
+        private static final byte[] SMALL = new byte[128];
+        private static final byte[] LARGE = new byte[1024 * 1024];
+
+        @GET
+        @Path("small")
+        @Produces(MediaType.APPLICATION_OCTET_STREAM)
+        public byte[] small() {
+            return SMALL;
+        }
+
+        @GET
+        @Path("large")
+        @Produces(MediaType.APPLICATION_OCTET_STREAM)
+        public byte[] large() {
+            return LARGE;
+        }
+
+        @POST
+        @Path("upload")
+        @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+        @Produces(MediaType.TEXT_PLAIN)
+        public String upload(InputStream body) throws IOException {
+            final byte[] buffer = new byte[8192];
+            long length = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                length += read;
+            }
+            return String.valueOf(length);
+        }
+    }
+
+    /**
+     * A container bound to a local address and a client channel connected to it. Every benchmark thread gets its
+     * own, so that the responses it waits for are those of its requests.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        private static final AtomicInteger ADDRESSES = new AtomicInteger();
+
+        private final Responses responses = new Responses();
+        private NettyContainer container;
+        private ServerBootstrap server;
+        private ClientBootstrap client;
+        private Channel channel;
+
+        @Setup
+        public void setUp() throws URISyntaxException {
+            container = new NettyContainer(new ResourceConfig()
+                    .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:12900/"))
+                    .property(NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_DIRECT)
+                    .register(BenchmarkResource.class));
+            final LocalAddress address = new LocalAddress("jersey-netty-benchmark-" + ADDRESSES.incrementAndGet());
+            server = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+            server.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    return Channels.pipeline(container);
+                }
+            });
+            server.bind(address);
+
+            client = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+            client.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    return Channels.pipeline(responses);
+                }
+            });
+            channel = client.connect(address).awaitUninterruptibly().getChannel();
+        }
+
+        @TearDown
+        public void tearDown() {
+            channel.close().awaitUninterruptibly();
+            client.releaseExternalResources();
+            server.releaseExternalResources();
+            container.shutdown();
+        }
+
+        /**
+         * Writes the message that completes a request and waits for its response.
+         */
+        long send(Object message) throws InterruptedException {
+            channel.write(message);
+            return responses.await();
+        }
+    }
+
+    /**
+     * The body of a chunked request.
+     */
+    @State(Scope.Benchmark)
+    public static class ChunkedBody {
+        @Param({"16", "256"})
+        public int chunkCount;
+
+        @Param({"512", "8192"})
+        public int chunkSize;
+
+        private byte[] chunk;
+
+        @Setup
+        public void setUp() {
+            chunk = new byte[chunkSize];
+        }
+    }
+
+    @Benchmark
+    public long getSmall(Connection connection) throws InterruptedException {
+        return connection.send(request(HttpMethod.GET, "/small"));
+    }
+
+    @Benchmark
+    public long getSmallWithHeaders(Connection connection) throws InterruptedException {
+        final HttpRequest request = request(HttpMethod.GET, "/small");
+        for (int i = 0; i < HEADER_COUNT; i++) {
+            request.headers().add("X-Benchmark-" + (i % 10), "value " + i);
+        }
+        return connection.send(request);
+    }
+
+    @Benchmark
+    public long getSmallWithBasicAuth(Connection connection) throws InterruptedException {
+        final HttpRequest request = request(HttpMethod.GET, "/small");
+        request.headers().set(HttpHeaders.Names.AUTHORIZATION, AUTHORIZATION);
+        return connection.send(request);
+    }
+
+    @Benchmark
+    public long getLarge(Connection connection) throws InterruptedException {
+        return connection.send(request(HttpMethod.GET, "/large"));
+    }
+
+    @Benchmark
+    public long postChunked(Connection connection, ChunkedBody body) throws InterruptedException {
+        final HttpRequest request = request(HttpMethod.POST, "/upload");
+        request.headers().set(HttpHeaders.Names.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM);
+        request.setChunked(true);
+        HttpHeaders.setTransferEncodingChunked(request);
+        connection.channel.write(request);
+        for (int i = 0; i < body.chunkCount; i++) {
+            connection.channel.write(new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(body.chunk)));
+        }
+        return connection.send(HttpChunk.LAST_CHUNK);
+    }
+
+    /**
+     * Counts completed responses, ignoring the {@code 100 Continue} ones sent for chunked requests.
+     */
+    private static class Responses extends SimpleChannelUpstreamHandler {
+        private final Semaphore completed = new Semaphore(0);
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            final Object message = e.getMessage();
+            if (message instanceof HttpResponse) {
+                final HttpResponse response = (HttpResponse) message;
+                if (!response.isChunked() && !HttpResponseStatus.CONTINUE.equals(response.getStatus())) {
+                    completed.release();
+                }
+            } else if (message instanceof HttpChunk && ((HttpChunk) message).isLast()) {
+                completed.release();
+            }
+        }
+
+        long await() throws InterruptedException {
+            if (!completed.tryAcquire(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No response within 10 seconds");
+            }
+            return 1;
+        }
+    }
+
+    private static HttpRequest request(HttpMethod method, String uri) {
+        final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+        request.headers().set(HttpHeaders.Names.HOST, "localhost");
+        return request;
+    }
+}
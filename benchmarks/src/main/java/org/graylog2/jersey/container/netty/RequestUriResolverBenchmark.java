@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving request URIs against the base URI, with and without the cache of resolved URIs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestUriResolverBenchmark {
+    private RequestUriResolver resolver;
+    private RequestUriResolver cachingResolver;
+
+    @Setup
+    public void setUp() throws URISyntaxException {
+        final URI baseUri = new URI("http://localhost:12900/");
+        resolver = new RequestUriResolver(baseUri, 0);
+        cachingResolver = new RequestUriResolver(baseUri, 1024);
+    }
+
+    @Benchmark
+    public URI resolvePlainPath() {
+        return resolver.resolve("/system/inputs?limit=100");
+    }
+
+    @Benchmark
+    public URI resolveDotSegments() {
+        return resolver.resolve("/system/../system/inputs?limit=100");
+    }
+
+    @Benchmark
+    public URI resolveCached() {
+        return cachingResolver.resolve("/system/inputs?limit=100");
+    }
+}
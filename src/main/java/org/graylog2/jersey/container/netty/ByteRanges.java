@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The byte ranges of an entity requested with a {@code Range} header, RFC 7233.
+ *
+ * A single range is sent as the body of a {@code 206 Partial Content} response with a {@code Content-Range} header,
+ * several ones as the parts of a {@code multipart/byteranges} body. Headers that aren't valid, ask for more than
+ * {@value #MAX_RANGES} ranges or for overlapping ones, which is more likely an attack than a download client, are
+ * ignored and the whole entity is sent.
+ */
+final class ByteRanges {
+    static final int MAX_RANGES = 16;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String BYTES_UNIT = "bytes=";
+
+    static final class Range {
+        private final long first;
+        private final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long getFirst() {
+            return first;
+        }
+
+        long getLength() {
+            return last - first + 1;
+        }
+    }
+
+    private final List<Range> ranges;
+    private final long entityLength;
+    private final String contentType;
+    private final String boundary;
+
+    private ByteRanges(List<Range> ranges, long entityLength, String contentType) {
+        this.ranges = ranges;
+        this.entityLength = entityLength;
+        this.contentType = contentType;
+        this.boundary = ranges.size() > 1 ? Long.toHexString(ThreadLocalRandom.current().nextLong()) : null;
+    }
+
+    /**
+     * @param header       the {@code Range} header of the request
+     * @param entityLength the length of the whole entity
+     * @param contentType  the content type of the entity, repeated in the parts of a multipart body
+     * @return the ranges to send, none if the header can't be satisfied, {@code null} to ignore the header
+     */
+    static ByteRanges parse(String header, long entityLength, String contentType) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        final List<Range> ranges = new ArrayList<>();
+        int specs = 0;
+        for (String spec : header.substring(BYTES_UNIT.length()).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            final long first;
+            final long last;
+            if (dash == 0) {
+                // the last bytes of the entity
+                final long suffixLength = parseNumber(spec.substring(1));
+                if (suffixLength < 0) {
+                    return null;
+                }
+                first = Math.max(0, entityLength - suffixLength);
+                last = suffixLength == 0 ? -1 : entityLength - 1;
+            } else {
+                first = parseNumber(spec.substring(0, dash));
+                final String lastSpec = spec.substring(dash + 1);
+                last = lastSpec.isEmpty() ? entityLength - 1 : parseNumber(lastSpec);
+                if (first < 0 || (!lastSpec.isEmpty() && (last < 0 || last < first))) {
+                    return null;
+                }
+            }
+            if (first < entityLength && last >= first) {
+                ranges.add(new Range(first, Math.min(last, entityLength - 1)));
+            }
+        }
+        if (specs == 0 || overlap(ranges)) {
+            return null;
+        }
+        return new ByteRanges(ranges, entityLength, contentType);
+    }
+
+    /**
+     * @return the digits as a number, {@code -1} if they aren't digits or too many
+     */
+    private static long parseNumber(String digits) {
+        if (digits.isEmpty() || digits.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    private static boolean overlap(List<Range> ranges) {
+        final List<Range> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                return Long.compare(a.first, b.first);
+            }
+        });
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).first <= sorted.get(i - 1).last) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks the {@code If-Range} header of a request, which asks for the ranges only if the entity is still the one
+     * identified by a strong entity tag or a modification date, and for the whole entity otherwise.
+     *
+     * @return {@code true} if the ranges should be sent
+     */
+    static boolean ifRangeMatches(String ifRange, String entityTag, String lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        final String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            // weak entity tags never match
+            return entityTag != null && !entityTag.startsWith("W/") && validator.equals(entityTag.trim());
+        }
+        return lastModified != null && validator.equals(lastModified.trim());
+    }
+
+    /**
+     * @return {@code false} if none of the requested ranges lie within the entity
+     */
+    boolean isSatisfiable() {
+        return !ranges.isEmpty();
+    }
+
+    boolean isMultipart() {
+        return ranges.size() > 1;
+    }
+
+    List<Range> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the value of the {@code Content-Range} header of the response, for a single range
+     */
+    String getContentRange() {
+        return ranges.isEmpty() ? "bytes */" + entityLength : contentRange(ranges.get(0));
+    }
+
+    private String contentRange(Range range) {
+        return "bytes " + range.first + "-" + range.last + "/" + entityLength;
+    }
+
+    /**
+     * @return the value of the {@code Content-Type} header of a multipart response
+     */
+    String getMultipartContentType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * @return the delimiter and headers preceding the given range in a multipart body
+     */
+    ChannelBuffer partHeader(Range range) {
+        final StringBuilder header = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        header.append("Content-Range: ").append(contentRange(range)).append("\r\n\r\n");
+        return ChannelBuffers.wrappedBuffer(header.toString().getBytes(US_ASCII));
+    }
+
+    /**
+     * @return the delimiter ending a multipart body
+     */
+    ChannelBuffer closingDelimiter() {
+        return ChannelBuffers.wrappedBuffer(("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII));
+    }
+
+    /**
+     * @return the number of bytes of the body sent for the ranges
+     */
+    long getContentLength() {
+        if (!isMultipart()) {
+            return ranges.isEmpty() ? 0 : ranges.get(0).getLength();
+        }
+        long length = closingDelimiter().readableBytes();
+        for (Range range : ranges) {
+            length += partHeader(range).readableBytes() + range.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return the body sent for the ranges of an entity in memory
+     */
+    ChannelBuffer slice(ChannelBuffer entity) {
+        if (!isMultipart()) {
+            final Range range = ranges.get(0);
+            return entity.slice(entity.readerIndex() + (int) range.first, (int) range.getLength());
+        }
+        final List<ChannelBuffer> parts = new ArrayList<>(2 * ranges.size() + 1);
+        for (Range range : ranges) {
+            parts.add(partHeader(range));
+            parts.add(entity.slice(entity.readerIndex() + (int) range.first, (int) range.getLength()));
+        }
+        parts.add(closingDelimiter());
+        return ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()]));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+/**
+ * A {@link SecurityContextFactory} that wants to know about the {@link SecurityContextCache} of the container it is
+ * used by, e.g. to invalidate the cached contexts of a user whose credentials have changed.
+ */
+public interface CacheAwareSecurityContextFactory extends SecurityContextFactory {
+
+    /**
+     * Called when the factory is handed to the container.
+     *
+     * @param cache the cache of the container, {@code null} if security contexts are not cached
+     */
+    void setSecurityContextCache(SecurityContextCache cache);
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection state of the {@link NettyContainer}, kept as the attachment of its {@link ChannelHandlerContext}.
+ *
+ * Several independent parts of the container may want to stop reading from a connection at the same time, so reads
+ * are only resumed once every one of them has given its permission back.
+ */
+final class ChannelState {
+    static final int SUSPENDED_BY_DISPATCHER = 1;
+    static final int SUSPENDED_BY_REQUEST_BODY = 2;
+    static final int SUSPENDED_BY_MEMORY_BUDGET = 4;
+    static final int SUSPENDED_BY_PIPELINE = 8;
+
+    private final Channel channel;
+    private final ResponseSequencer responseSequencer;
+    private volatile HttpRequest request;
+    private volatile ChunkedRequestAssembler.PartialRequest partialRequest;
+
+    // guarded by this
+    private int readSuspensions = 0;
+
+    private final Object writabilityLock = new Object();
+
+    // guarded by itself
+    private final Set<NettyContainer.NettyResponseWriter> suspendedWriters = new HashSet<>();
+
+    ChannelState(Channel channel) {
+        this.channel = channel;
+        this.responseSequencer = new ResponseSequencer(this);
+    }
+
+    static ChannelState get(ChannelHandlerContext ctx) {
+        final Object attachment = ctx.getAttachment();
+        if (attachment instanceof ChannelState) {
+            return (ChannelState) attachment;
+        }
+        final ChannelState state = new ChannelState(ctx.getChannel());
+        ctx.setAttachment(state);
+        return state;
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    ResponseSequencer getResponseSequencer() {
+        return responseSequencer;
+    }
+
+    /**
+     * @return the request most recently received on this connection, or {@code null} if there was none yet.
+     */
+    HttpRequest getRequest() {
+        return request;
+    }
+
+    void setRequest(HttpRequest request) {
+        this.request = request;
+    }
+
+    ChunkedRequestAssembler.PartialRequest getPartialRequest() {
+        return partialRequest;
+    }
+
+    void setPartialRequest(ChunkedRequestAssembler.PartialRequest partialRequest) {
+        this.partialRequest = partialRequest;
+    }
+
+    synchronized void suspendReads(int reason) {
+        if (readSuspensions == 0) {
+            channel.setReadable(false);
+        }
+        readSuspensions |= reason;
+    }
+
+    synchronized void resumeReads(int reason) {
+        if (readSuspensions == 0) {
+            return;
+        }
+        readSuspensions &= ~reason;
+        if (readSuspensions == 0) {
+            channel.setReadable(true);
+        }
+    }
+
+    synchronized boolean isReadSuspended(int reason) {
+        return (readSuspensions & reason) != 0;
+    }
+
+    /**
+     * Waits until the channel is writable or closed.
+     *
+     * @return {@code false} if the channel did not become writable within the timeout
+     */
+    boolean awaitWritable(long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (writabilityLock) {
+            while (!channel.isWritable() && channel.isOpen()) {
+                final long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // check again now and then, in case a handler in front of the container swallowed the interest change
+                TimeUnit.NANOSECONDS.timedWait(writabilityLock, Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for the channel to become writable, to be called whenever its interest ops
+     * changed or it has been closed.
+     */
+    void writabilityChanged() {
+        synchronized (writabilityLock) {
+            writabilityLock.notifyAll();
+        }
+    }
+
+    void addSuspendedWriter(NettyContainer.NettyResponseWriter writer) {
+        synchronized (suspendedWriters) {
+            suspendedWriters.add(writer);
+        }
+    }
+
+    void removeSuspendedWriter(NettyContainer.NettyResponseWriter writer) {
+        synchronized (suspendedWriters) {
+            suspendedWriters.remove(writer);
+        }
+    }
+
+    /**
+     * @return a copy of the writers of the responses on this connection the application has suspended
+     */
+    List<NettyContainer.NettyResponseWriter> getSuspendedWriters() {
+        synchronized (suspendedWriters) {
+            return new ArrayList<>(suspendedWriters);
+        }
+    }
+}
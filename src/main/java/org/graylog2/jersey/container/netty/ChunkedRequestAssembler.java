@@ -1,44 +1,208 @@
 package org.graylog2.jersey.container.netty;
 
-import jersey.repackaged.com.google.common.collect.Maps;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Collects the chunks of requests whose body did not arrive in one piece.
+ *
+ * The partially received request is kept in the {@link ChannelState} of its connection, so that nothing is shared
+ * between connections except the counters of outstanding requests and bytes. The state has to be
+ * {@link #release(ChannelState) released} when the connection is closed before the request is complete.
+ */
 public class ChunkedRequestAssembler {
     private static final Logger LOG = LoggerFactory.getLogger(ChunkedRequestAssembler.class);
-    private final ConcurrentMap<Channel, List<HttpChunk>> chunkMap;
-    private final ConcurrentMap<Channel, HttpRequest> initialRequests;
+
+    /**
+     * Bodies made of more chunks than this are copied into a single buffer, because reading from a composite buffer
+     * gets slow when it has to search through too many components.
+     */
+    public static final int DEFAULT_MAX_COMPOSITE_COMPONENTS = 4096;
+
+    private final int maxCompositeComponents;
+    private final long maxRequestBodySize;
+    private final RequestBodyBudget budget;
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // the states of the channels used with the deprecated methods taking a Channel, until the channel is closed
+    private final ConcurrentMap<Channel, ChannelState> channelStates = new ConcurrentHashMap<>();
+
+    static final class PartialRequest {
+        private final HttpRequest request;
+        private final List<ChannelBuffer> contents = new ArrayList<>();
+        private final StreamingRequestBody body;
+        private final long startedAt = System.nanoTime();
+        private long bytes = 0;
+        private long received = 0;
+
+        private PartialRequest(HttpRequest request, StreamingRequestBody body) {
+            this.request = request;
+            this.body = body;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} the first part of the request arrived at
+         */
+        long getStartedAt() {
+            return startedAt;
+        }
+    }
 
     public ChunkedRequestAssembler() {
-        this.chunkMap = Maps.newConcurrentMap();
-        this.initialRequests = Maps.newConcurrentMap();
+        this(DEFAULT_MAX_COMPOSITE_COMPONENTS);
     }
 
+    public ChunkedRequestAssembler(int maxCompositeComponents) {
+        this(maxCompositeComponents, Long.MAX_VALUE, new RequestBodyBudget(0));
+    }
+
+    /**
+     * @param maxRequestBodySize the number of bytes a single request body may have
+     * @param budget             the memory budget the buffered request bodies are accounted for in
+     */
+    public ChunkedRequestAssembler(int maxCompositeComponents, long maxRequestBodySize, RequestBodyBudget budget) {
+        this.maxCompositeComponents = maxCompositeComponents;
+        this.maxRequestBodySize = maxRequestBodySize;
+        this.budget = budget;
+    }
+
+    void setup(ChannelState channelState, HttpRequest httpRequest) {
+        begin(channelState, new PartialRequest(httpRequest, null));
+    }
+
+    /**
+     * @deprecated the {@link NettyContainer} assembles chunked requests itself, keeping them in the state of their
+     *             connection. This method keeps the state of the channel until the channel is closed, which also
+     *             releases a request that has not been {@link #assemble(Channel) assembled} yet.
+     */
+    @Deprecated
     public void setup(Channel channel, HttpRequest httpRequest) {
-        chunkMap.putIfAbsent(channel, new ArrayList<HttpChunk>());
-        initialRequests.put(channel, httpRequest);
+        ChannelState channelState = channelStates.get(channel);
+        if (channelState == null) {
+            channelState = new ChannelState(channel);
+            final ChannelState existing = channelStates.putIfAbsent(channel, channelState);
+            if (existing != null) {
+                channelState = existing;
+            } else {
+                final ChannelState newState = channelState;
+                channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        channelStates.remove(future.getChannel(), newState);
+                        // an upload aborted by the client
+                        release(newState);
+                    }
+                });
+            }
+        }
+        setup(channelState, httpRequest);
+    }
+
+    /**
+     * Starts streaming the body of the request just received on the channel: its chunks are not collected but
+     * passed on to the returned stream as they arrive, which may be read while the rest of the request is still
+     * being received.
+     *
+     * @param window the number of bytes to buffer before reading from the channel is suspended
+     */
+    StreamingRequestBody stream(ChannelState channelState, HttpRequest httpRequest, long window) {
+        final StreamingRequestBody body = new StreamingRequestBody(channelState, window, budget);
+        begin(channelState, new PartialRequest(httpRequest, body));
+        return body;
+    }
+
+    private void begin(ChannelState channelState, PartialRequest partialRequest) {
+        // a client starting a new request before finishing the previous one, drop what we have got so far
+        release(channelState);
+        channelState.setPartialRequest(partialRequest);
+        pendingRequests.incrementAndGet();
+    }
+
+    boolean isStreaming(ChannelState channelState) {
+        final PartialRequest partialRequest = channelState.getPartialRequest();
+        return partialRequest != null && partialRequest.body != null;
+    }
+
+    /**
+     * Forgets the partially received request of the channel, e.g. because it has been closed. A body currently being
+     * streamed fails all further reads.
+     */
+    void release(ChannelState channelState) {
+        final PartialRequest partialRequest = channelState.getPartialRequest();
+        if (partialRequest == null) {
+            return;
+        }
+        channelState.setPartialRequest(null);
+        finished(partialRequest);
+        budget.release(partialRequest.bytes);
+        if (partialRequest.body != null) {
+            partialRequest.body.abort(new IOException("Connection closed before the request body was received completely"));
+        }
+    }
+
+    private void finished(PartialRequest partialRequest) {
+        pendingRequests.decrementAndGet();
+        pendingBytes.addAndGet(-partialRequest.bytes);
+    }
+
+    /**
+     * Returns the memory held by the body of an assembled request to the budget, to be called once the request has
+     * been handled.
+     */
+    void releaseAssembled(HttpRequest assembledRequest) {
+        // the application has moved the reader index while reading the body, but the buffer is sized exactly
+        budget.release(assembledRequest.getContent().capacity());
     }
 
+    /**
+     * @deprecated see {@link #setup(Channel, HttpRequest)}
+     */
+    @Deprecated
     public HttpRequest assemble(Channel channel) {
-        List<HttpChunk> chunkList = chunkMap.remove(channel);
-        HttpRequest request = initialRequests.remove(channel);
+        // the state is kept for the next request on the channel
+        final ChannelState channelState = channelStates.get(channel);
+        if (channelState == null) {
+            LOG.error("No request to assemble for channel {}.", channel);
+            return null;
+        }
+        final HttpRequest request = assemble(channelState);
+        if (request != null) {
+            // the caller doesn't know to return the memory once it has handled the request
+            releaseAssembled(request);
+        }
+        return request;
+    }
 
-        ChannelBuffer dstBuffer = ChannelBuffers.dynamicBuffer();
-        request.setContent(dstBuffer);
+    HttpRequest assemble(ChannelState channelState) {
+        final PartialRequest partialRequest = channelState.getPartialRequest();
+        if (partialRequest == null) {
+            LOG.error("No request to assemble for channel {}.", channelState.getChannel());
+            return null;
+        }
+        channelState.setPartialRequest(null);
+        finished(partialRequest);
 
+        final HttpRequest request = partialRequest.request;
         try {
-            for (HttpChunk chunk : chunkList) {
-                dstBuffer.writeBytes(chunk.getContent());
-            }
+            // netty refuses to set content on a chunked message, but this one is complete now
+            request.setChunked(false);
+            request.setContent(aggregate(partialRequest.contents));
         } catch (Exception e) {
             LOG.warn("Error while assembling HTTP request chunks", e);
         }
@@ -46,17 +210,92 @@ public class ChunkedRequestAssembler {
         return request;
     }
 
-    public void addChunk(Channel channel, HttpChunk nextChunk) {
+    /**
+     * Joins the chunk contents into one buffer, preferably without copying them.
+     */
+    ChannelBuffer aggregate(List<ChannelBuffer> contents) {
+        if (contents.size() <= maxCompositeComponents) {
+            return ChannelBuffers.wrappedBuffer(contents.toArray(new ChannelBuffer[contents.size()]));
+        }
+
+        int length = 0;
+        for (ChannelBuffer content : contents) {
+            length += content.readableBytes();
+        }
+        final ChannelBuffer dstBuffer = ChannelBuffers.buffer(length);
+        for (ChannelBuffer content : contents) {
+            dstBuffer.writeBytes(content, content.readerIndex(), content.readableBytes());
+        }
+        return dstBuffer;
+    }
+
+    /**
+     * @throws TooLongFrameException if the request body has grown larger than allowed. The partial request has been
+     *                               released already.
+     */
+    void addChunk(ChannelState channelState, HttpChunk nextChunk) throws TooLongFrameException {
         if (nextChunk == null) {
-            LOG.error("Chunk for channel {} was null.", channel);
+            LOG.error("Chunk for channel {} was null.", channelState.getChannel());
+            return;
+        }
+
+        final PartialRequest partialRequest = channelState.getPartialRequest();
+        if (partialRequest == null) {
+            LOG.error("Chunks for channel {} couldn't be found, skipping chunk.", channelState.getChannel());
             return;
         }
 
-        final List<HttpChunk> chunks = chunkMap.get(channel);
-        if (chunks == null) {
+        final ChannelBuffer content = nextChunk.getContent();
+        partialRequest.received += content.readableBytes();
+        if (partialRequest.received > maxRequestBodySize) {
+            release(channelState);
+            throw new TooLongFrameException("HTTP content length exceeded " + maxRequestBodySize + " bytes.");
+        }
+
+        if (partialRequest.body != null) {
+            partialRequest.body.offer(content);
+            if (nextChunk.isLast()) {
+                channelState.setPartialRequest(null);
+                finished(partialRequest);
+                partialRequest.body.finish();
+            }
+        } else if (content.readable()) {
+            partialRequest.contents.add(content);
+            partialRequest.bytes += content.readableBytes();
+            pendingBytes.addAndGet(content.readableBytes());
+            budget.reserve(channelState, content.readableBytes());
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the request body has grown larger than allowed
+     * @deprecated see {@link #setup(Channel, HttpRequest)}
+     */
+    @Deprecated
+    public void addChunk(Channel channel, HttpChunk nextChunk) {
+        final ChannelState channelState = channelStates.get(channel);
+        if (channelState == null) {
             LOG.error("Chunks for channel {} couldn't be found, skipping chunk.", channel);
-        } else {
-            chunks.add(nextChunk);
+            return;
+        }
+        try {
+            addChunk(channelState, nextChunk);
+        } catch (TooLongFrameException e) {
+            throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * @return the number of requests whose body has not been received completely yet
+     */
+    public int getPendingRequests() {
+        return pendingRequests.get();
+    }
+
+    /**
+     * @return the number of bytes held by buffered requests whose body has not been received completely yet
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Entity stream of a chunked response.
+ *
+ * Serializers tend to write their output in small pieces, so instead of sending every write as a chunk of its own,
+ * the data is collected in a buffer taken from the {@link ResponseBufferPool}. A chunk is only written once the
+ * buffer is full, the stream is flushed or closed. Writes of at least a full buffer are sent as they are, if
+ * nothing has been collected before them.
+ *
+ * Before a chunk is written, the {@link ResponseWriteThrottle} makes the application wait until the client has
+ * read enough of what has been written so far, and until the response is next in line if too much of it would have
+ * to be held back behind earlier ones.
+ */
+final class ChunkedResponseOutputStream extends OutputStream {
+    private static final Logger log = LoggerFactory.getLogger(ChunkedResponseOutputStream.class);
+
+    private final ChannelState channelState;
+    private final long sequence;
+    private final ResponseBufferPool bufferPool;
+    private final ResponseWriteThrottle throttle;
+    private final ContainerMetrics metrics;
+    private ChannelBuffer buffer;
+
+    /**
+     * @param sequence the sequence number of the response in the {@link ResponseSequencer} of the connection
+     */
+    ChunkedResponseOutputStream(ChannelState channelState, long sequence, ResponseBufferPool bufferPool,
+                                ResponseWriteThrottle throttle, ContainerMetrics metrics) {
+        this.channelState = channelState;
+        this.sequence = sequence;
+        this.bufferPool = bufferPool;
+        this.throttle = throttle;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer == null) {
+            buffer = bufferPool.acquire();
+        }
+        buffer.writeByte(b);
+        if (!buffer.writable()) {
+            writeBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (buffer == null && len >= bufferPool.getBufferSize()) {
+                // be sure to copy the array here, because it gets re-used by the caller!
+                writeChunk(ChannelBuffers.copiedBuffer(b, off, len));
+                return;
+            }
+            if (buffer == null) {
+                buffer = bufferPool.acquire();
+            }
+            final int length = Math.min(len, buffer.writableBytes());
+            buffer.writeBytes(b, off, length);
+            off += length;
+            len -= length;
+            if (!buffer.writable()) {
+                writeBuffer();
+            }
+        }
+    }
+
+    /**
+     * Writes the collected data as a chunk, if there is any.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.readable()) {
+            writeBuffer();
+        } else {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void writeBuffer() throws IOException {
+        final ChannelBuffer pooledBuffer = buffer;
+        buffer = null;
+        writeChunk(pooledBuffer).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    bufferPool.release(pooledBuffer);
+                }
+            }
+        });
+    }
+
+    private ChannelFuture writeChunk(ChannelBuffer content) throws IOException {
+        throttle.awaitWritable(channelState, sequence);
+        if (log.isTraceEnabled()) {
+            log.trace("writing data: {}", content.toString(Charset.defaultCharset()));
+        }
+        final int length = content.readableBytes();
+        final ChannelFuture future = channelState.getResponseSequencer().write(sequence, new DefaultHttpChunk(content));
+        metrics.responseBodyWritten(length, true);
+        if (log.isDebugEnabled()) {
+            log.debug("wrote {} bytes as chunk", length);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+/**
+ * Receives the measurements the {@link NettyContainer} takes while handling requests.
+ *
+ * The methods are called on the hot paths of the container, from the Netty I/O workers and the threads running the
+ * application, so they have to be cheap and must neither block nor throw. All durations are in nanoseconds.
+ *
+ * @see DefaultContainerMetrics
+ */
+public interface ContainerMetrics {
+
+    /**
+     * A request has been received completely, or as far as it is streamed, and is handed to the application.
+     */
+    void requestStarted();
+
+    /**
+     * The response to a request has been committed or has failed.
+     *
+     * @param resourceMethod the resource method that handled the request, {@code null} if none matched or the
+     *                       response came from the {@link ResponseCache}
+     * @param status         the status code of the response
+     * @param duration       the time since {@link #requestStarted()}
+     */
+    void requestCompleted(String resourceMethod, int status, long duration);
+
+    /**
+     * Bytes of a request body have been received, as a whole or as one of its chunks.
+     */
+    void requestBodyReceived(long bytes, boolean chunk);
+
+    /**
+     * The last chunk of a buffered request has arrived.
+     *
+     * @param duration the time since the first chunk of the request arrived
+     */
+    void requestAssembled(long duration);
+
+    /**
+     * The application started handling a request.
+     *
+     * @param queued the time the request waited for the request executor
+     */
+    void requestDispatched(long queued);
+
+    /**
+     * The application finished handling a request, which does not mean that its response is complete.
+     *
+     * @param duration the time spent in Jersey
+     */
+    void requestHandled(long duration);
+
+    /**
+     * Bytes of a response body have been written, as a whole or as one of its chunks.
+     */
+    void responseBodyWritten(long bytes, boolean chunk);
+
+    /**
+     * The rest of a response has been handed to Netty.
+     *
+     * @param duration the time it took to flush and write the rest of the response
+     */
+    void responseCommitted(long duration);
+}
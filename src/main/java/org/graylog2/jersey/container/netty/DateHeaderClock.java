@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.glassfish.jersey.message.internal.HttpDateFormat;
+
+import java.util.Date;
+
+/**
+ * Value of the HTTP {@code Date} header, formatted at most once per second and shared by all requests.
+ *
+ * The header only has a resolution of one second, so there is no point in running a {@code SimpleDateFormat} for
+ * every request. Threads racing on a new second may both format it, which is harmless.
+ */
+final class DateHeaderClock {
+    private static final class FormattedSecond {
+        private final long second;
+        private final String value;
+
+        private FormattedSecond(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+    private volatile FormattedSecond current = new FormattedSecond(Long.MIN_VALUE, null);
+
+    /**
+     * @return the current time formatted as an HTTP date
+     */
+    String get() {
+        return get(System.currentTimeMillis());
+    }
+
+    String get(long millis) {
+        final long second = millis / 1000;
+        final FormattedSecond formatted = current;
+        if (formatted.second == second) {
+            return formatted.value;
+        }
+        final String value = format(second * 1000);
+        current = new FormattedSecond(second, value);
+        return value;
+    }
+
+    static String format(long millis) {
+        return HttpDateFormat.getPreferredDateFormat().format(new Date(millis));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Entity stream of a request sent with {@code Content-Encoding: gzip} or {@code deflate}, inflating the body while
+ * the application reads it.
+ *
+ * Nothing is read from the compressed body before the application reads from this stream, so a body still being
+ * {@link StreamingRequestBody streamed} is inflated chunk by chunk as it arrives, and the I/O worker creating the
+ * stream never blocks on it. The decompressed body is never held in memory as a whole; reads fail once it grows
+ * larger than the limit, which protects against small bodies inflating to huge amounts of data.
+ */
+final class DecompressingRequestBody extends InputStream {
+    private final InputStream compressed;
+    private final boolean gzip;
+    private final long maxSize;
+
+    // only used by the thread reading the body
+    private InputStream inflating;
+    private long decompressed = 0;
+    private boolean closed = false;
+
+    /**
+     * @param maxSize the number of bytes the decompressed body may have
+     */
+    DecompressingRequestBody(InputStream compressed, String contentEncoding, long maxSize) {
+        if (!isSupported(contentEncoding)) {
+            throw new IllegalArgumentException("Unsupported content encoding " + contentEncoding);
+        }
+        this.compressed = compressed;
+        this.gzip = !"deflate".equals(normalize(contentEncoding));
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return {@code true} if bodies with the given {@code Content-Encoding} can be decompressed
+     */
+    static boolean isSupported(String contentEncoding) {
+        if (contentEncoding == null) {
+            return false;
+        }
+        switch (normalize(contentEncoding)) {
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String normalize(String contentEncoding) {
+        return contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (inflating == null) {
+            // the gzip header is read right away, which may block until it has been received
+            inflating = gzip ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+        }
+        // one byte more than allowed is enough to tell that the body is too large
+        final long remaining = maxSize - decompressed;
+        final int read = inflating.read(b, off, remaining < len ? (int) remaining + 1 : len);
+        if (read > 0) {
+            decompressed += read;
+            if (decompressed > maxSize) {
+                throw new IOException("Decompressed request body is larger than " + maxSize + " bytes");
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return inflating == null ? 0 : inflating.available();
+    }
+
+    /**
+     * Releases the inflater and closes the compressed body.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (inflating != null) {
+                inflating.close();
+            } else {
+                compressed.close();
+            }
+        } catch (IOException ignored) {
+            // the request bodies we read from don't fail when they are closed
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the measurements of the container in memory, to be read by whatever exports them to monitoring.
+ *
+ * Counters are {@link StripedCounter striped}, so that the I/O workers and request threads updating them don't
+ * contend for the same cache lines, and durations go into {@link LatencyHistogram histograms} of fixed size. The
+ * latency of completed requests is kept per resource method, up to {@value #MAX_RESOURCE_METHODS} of them; requests
+ * for further methods, for no matching one or answered from the cache are recorded under {@link #OTHER}.
+ */
+public class DefaultContainerMetrics implements ContainerMetrics {
+    public static final String OTHER = "other";
+    static final int MAX_RESOURCE_METHODS = 1024;
+
+    private final StripedCounter requestsStarted = new StripedCounter();
+    private final StripedCounter requestsCompleted = new StripedCounter();
+    private final StripedCounter[] responsesByStatusClass = new StripedCounter[6];
+    private final StripedCounter bytesReceived = new StripedCounter();
+    private final StripedCounter chunksReceived = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final StripedCounter chunksWritten = new StripedCounter();
+
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram assemblyLatency = new LatencyHistogram();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram handlingLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> resourceMethodLatencies = new ConcurrentHashMap<>();
+
+    public DefaultContainerMetrics() {
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            responsesByStatusClass[i] = new StripedCounter();
+        }
+    }
+
+    @Override
+    public void requestStarted() {
+        requestsStarted.increment();
+    }
+
+    @Override
+    public void requestCompleted(String resourceMethod, int status, long duration) {
+        requestsCompleted.increment();
+        responsesByStatusClass[Math.max(0, Math.min(status / 100, responsesByStatusClass.length - 1))].increment();
+        requestLatency.record(duration, TimeUnit.NANOSECONDS);
+        resourceMethodLatency(resourceMethod).record(duration, TimeUnit.NANOSECONDS);
+    }
+
+    private LatencyHistogram resourceMethodLatency(String resourceMethod) {
+        final String name = resourceMethod == null ? OTHER : resourceMethod;
+        LatencyHistogram histogram = resourceMethodLatencies.get(name);
+        if (histogram == null) {
+            if (resourceMethodLatencies.size() >= MAX_RESOURCE_METHODS && !OTHER.equals(name)) {
+                return resourceMethodLatency(OTHER);
+            }
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = resourceMethodLatencies.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public void requestBodyReceived(long bytes, boolean chunk) {
+        bytesReceived.add(bytes);
+        if (chunk) {
+            chunksReceived.increment();
+        }
+    }
+
+    @Override
+    public void requestAssembled(long duration) {
+        assemblyLatency.record(duration, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void requestDispatched(long queued) {
+        queueLatency.record(queued, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void requestHandled(long duration) {
+        handlingLatency.record(duration, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void responseBodyWritten(long bytes, boolean chunk) {
+        bytesWritten.add(bytes);
+        if (chunk) {
+            chunksWritten.increment();
+        }
+    }
+
+    @Override
+    public void responseCommitted(long duration) {
+        commitLatency.record(duration, TimeUnit.NANOSECONDS);
+    }
+
+    public long getRequestsStarted() {
+        return requestsStarted.sum();
+    }
+
+    public long getRequestsCompleted() {
+        return requestsCompleted.sum();
+    }
+
+    /**
+     * @return the number of requests handed to the application whose response has not been completed yet
+     */
+    public long getRequestsInFlight() {
+        // read completed first, so that a request completing in between can't make the result negative
+        final long completed = requestsCompleted.sum();
+        return requestsStarted.sum() - completed;
+    }
+
+    /**
+     * @param statusClass the first digit of the status codes, e.g. {@code 5} for server errors
+     * @return the number of responses with a status code of the given class
+     */
+    public long getResponses(int statusClass) {
+        return responsesByStatusClass[statusClass].sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten.sum();
+    }
+
+    /**
+     * @return the time from receiving requests to completing their responses
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * @return the time from receiving the first to receiving the last chunk of buffered requests
+     */
+    public LatencyHistogram getAssemblyLatency() {
+        return assemblyLatency;
+    }
+
+    /**
+     * @return the time requests waited for the request executor
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * @return the time spent in Jersey handling requests
+     */
+    public LatencyHistogram getHandlingLatency() {
+        return handlingLatency;
+    }
+
+    /**
+     * @return the time it took to write the rest of responses once they were committed
+     */
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * @return the latency of completed requests by the resource method that handled them
+     */
+    public Map<String, LatencyHistogram> getResourceMethodLatencies() {
+        return Collections.unmodifiableMap(resourceMethodLatencies);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file sent as the entity of a response straight from the file system, without reading it into the heap.
+ *
+ * Where Netty can, the file is written as a {@link DefaultFileRegion}, which the NIO transport hands to the kernel
+ * with {@code sendfile}. Otherwise, e.g. when the connection is encrypted, it is read in chunks by the
+ * {@link org.jboss.netty.handler.stream.ChunkedWriteHandler}. Either way the file is closed once it has been sent or
+ * the connection failed.
+ */
+final class FileEntity implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FileEntity.class);
+
+    private final FileChannel file;
+    private final long position;
+    private final long count;
+
+    FileEntity(FileChannel file, long position, long count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    /**
+     * @param entity a {@link File}, {@link Path} or {@link FileChannel}, the latter is sent from its current position
+     * @return the file to send, {@code null} if the entity is none of the above or not a regular file
+     * @throws IOException if the file cannot be opened
+     */
+    static FileEntity of(Object entity) throws IOException {
+        if (entity instanceof File) {
+            return open(((File) entity).toPath());
+        } else if (entity instanceof Path) {
+            return open((Path) entity);
+        } else if (entity instanceof FileChannel) {
+            final FileChannel file = (FileChannel) entity;
+            final long position = file.position();
+            return new FileEntity(file, position, Math.max(0, file.size() - position));
+        }
+        return null;
+    }
+
+    private static FileEntity open(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        final FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new FileEntity(file, 0, file.size());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of bytes sent
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @param zeroCopy  whether the transport can write the file without reading it first
+     * @param chunkSize the size of the chunks the file is read in otherwise
+     * @return the message to write to the channel
+     */
+    Object toMessage(boolean zeroCopy, int chunkSize) throws IOException {
+        return toMessage(0, count, zeroCopy, chunkSize);
+    }
+
+    /**
+     * @param offset the offset of the region to send from the start of the entity
+     * @param length the length of the region
+     * @return the message to write a region of the entity to the channel
+     */
+    Object toMessage(long offset, long length, boolean zeroCopy, int chunkSize) throws IOException {
+        if (zeroCopy) {
+            return new DefaultFileRegion(file, position + offset, length);
+        }
+        return new ChunkedNioFile(file, position + offset, length, chunkSize) {
+            @Override
+            public void close() {
+                // the ChunkedWriteHandler closes every input it has sent, but other regions may follow
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.debug("Could not close file of response entity", e);
+        }
+    }
+}
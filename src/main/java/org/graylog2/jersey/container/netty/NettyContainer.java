@@ -16,14 +16,18 @@
 
 package org.graylog2.jersey.container.netty;
 
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.internal.MapPropertiesDelegate;
 import org.glassfish.jersey.internal.util.Base64;
-import org.glassfish.jersey.message.internal.HttpDateFormat;
 import org.glassfish.jersey.server.ApplicationHandler;
 import org.glassfish.jersey.server.ContainerException;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.ContainerResponse;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
+import org.glassfish.jersey.server.model.Invocable;
+import org.glassfish.jersey.server.model.ResourceMethod;
 import org.glassfish.jersey.server.spi.Container;
 import org.glassfish.jersey.server.spi.ContainerResponseWriter;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -31,38 +35,58 @@ import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.DefaultExceptionEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.channel.socket.nio.NioChannelConfig;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunkTrailer;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerResponseFilter;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Configuration;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.nio.channels.ClosedChannelException;
-import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  OMG this is getting to be such a hack.
@@ -73,137 +97,880 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
     public static final String PROPERTY_BASE_URI = "org.graylog2.jersey.container.netty.baseUri";
     public static final String REQUEST_PROPERTY_REMOTE_ADDR = "org.graylog2.jersey.container.netty.request.property.remote_addr";
 
+    /**
+     * Where to run the Jersey application: {@value #EXECUTOR_DIRECT} (on the Netty I/O worker, the default),
+     * {@value #EXECUTOR_FIXED} or {@value #EXECUTOR_WORK_STEALING}.
+     */
+    public static final String PROPERTY_EXECUTOR = "org.graylog2.jersey.container.netty.executor";
+    /**
+     * Number of threads of the {@value #EXECUTOR_FIXED} and {@value #EXECUTOR_WORK_STEALING} executors, defaults to
+     * the number of available processors.
+     */
+    public static final String PROPERTY_EXECUTOR_THREADS = "org.graylog2.jersey.container.netty.executor.threads";
+    /**
+     * Number of requests that may be pending in the executor before the container stops reading from the
+     * connections submitting more of them. Defaults to {@value #DEFAULT_EXECUTOR_MAX_QUEUED}.
+     */
+    public static final String PROPERTY_EXECUTOR_MAX_QUEUED = "org.graylog2.jersey.container.netty.executor.maxQueued";
+
+    /**
+     * If {@code true}, chunked requests are handed to the application before their body has been received
+     * completely, with the entity stream being fed as the chunks arrive. Requires an executor other than
+     * {@value #EXECUTOR_DIRECT}, because the I/O worker cannot read the rest of the body while it is blocked in
+     * the application.
+     */
+    public static final String PROPERTY_STREAM_REQUEST_BODIES = "org.graylog2.jersey.container.netty.request.streaming";
+    /**
+     * Number of bytes of a streamed request body that may be buffered before the container stops reading from the
+     * connection. Defaults to {@value #DEFAULT_REQUEST_BODY_WINDOW}.
+     */
+    public static final String PROPERTY_REQUEST_BODY_WINDOW = "org.graylog2.jersey.container.netty.request.streaming.window";
+
+    /**
+     * If {@code true}, request bodies sent with {@code Content-Encoding: gzip} or {@code deflate} are handed to the
+     * application decompressed, without the {@code Content-Encoding} and {@code Content-Length} headers. Off by
+     * default. See {@link DecompressingRequestBody}.
+     */
+    public static final String PROPERTY_REQUEST_DECOMPRESSION = "org.graylog2.jersey.container.netty.request.decompression";
+    /**
+     * Number of bytes a decompressed request body may have, reading more fails. Defaults to
+     * {@value #DEFAULT_MAX_DECOMPRESSED_REQUEST_BODY_SIZE}.
+     */
+    public static final String PROPERTY_MAX_DECOMPRESSED_REQUEST_BODY_SIZE = "org.graylog2.jersey.container.netty.request.decompression.maxBodySize";
+
+    /**
+     * Number of chunks up to which a buffered request body is joined without copying it. Defaults to
+     * {@value ChunkedRequestAssembler#DEFAULT_MAX_COMPOSITE_COMPONENTS}.
+     */
+    public static final String PROPERTY_MAX_COMPOSITE_COMPONENTS = "org.graylog2.jersey.container.netty.request.maxCompositeComponents";
+
+    /**
+     * Number of bytes the body of a single request may have. Larger requests are answered with
+     * {@code 413 Request Entity Too Large} and their connection is closed. Unlimited by default.
+     */
+    public static final String PROPERTY_MAX_REQUEST_BODY_SIZE = "org.graylog2.jersey.container.netty.request.maxBodySize";
+    /**
+     * Number of bytes all request bodies buffered by the container may use together. Once exhausted, the container
+     * stops reading from connections sending more data until memory has been released. Unlimited by default.
+     */
+    public static final String PROPERTY_REQUEST_BODY_BUDGET = "org.graylog2.jersey.container.netty.request.bodyBudget";
+
+    /**
+     * Number of bytes collected before a chunk of a chunked response is written, unless the application flushes the
+     * entity stream earlier. Defaults to {@value #DEFAULT_RESPONSE_CHUNK_SIZE}.
+     */
+    public static final String PROPERTY_RESPONSE_CHUNK_SIZE = "org.graylog2.jersey.container.netty.response.chunkSize";
+
+    /**
+     * Number of bytes queued for writing to a connection after which it is considered unwritable, and threads
+     * writing chunked responses to it wait until it has drained below the low water mark. Defaults to Netty's
+     * {@code writeBufferHighWaterMark}.
+     */
+    public static final String PROPERTY_WRITE_BUFFER_HIGH_WATER_MARK = "org.graylog2.jersey.container.netty.response.writeBufferHighWaterMark";
+    /**
+     * Number of queued bytes below which an unwritable connection is writable again. Defaults to Netty's
+     * {@code writeBufferLowWaterMark}.
+     */
+    public static final String PROPERTY_WRITE_BUFFER_LOW_WATER_MARK = "org.graylog2.jersey.container.netty.response.writeBufferLowWaterMark";
+    /**
+     * Milliseconds a thread writing a response waits for an unwritable connection before it gives up and closes it,
+     * {@code 0} to wait forever. Defaults to {@value #DEFAULT_RESPONSE_WRITE_TIMEOUT}.
+     */
+    public static final String PROPERTY_RESPONSE_WRITE_TIMEOUT = "org.graylog2.jersey.container.netty.response.writeTimeout";
+
+    /**
+     * If {@code true}, the default, Jersey buffers response entities of unknown length up to
+     * {@link ServerProperties#OUTBOUND_CONTENT_LENGTH_BUFFER} bytes, so that they can be sent with a
+     * {@code Content-Length} in a single write instead of being chunked. Larger entities are still streamed.
+     */
+    public static final String PROPERTY_RESPONSE_BUFFERING = "org.graylog2.jersey.container.netty.response.buffering";
+
+    /**
+     * If {@code true}, the default, entities of type {@code String}, {@code byte[]} and {@code ChannelBuffer} are
+     * encoded by the container itself and sent with an exact {@code Content-Length}, without going through Jersey's
+     * message body writers. Always off if the application registers writer interceptors.
+     */
+    public static final String PROPERTY_PRE_ENCODE_ENTITIES = "org.graylog2.jersey.container.netty.response.preEncodeEntities";
+
+    /**
+     * If {@code true}, the default, entities of type {@code File}, {@code Path} and {@code FileChannel} are sent by
+     * the container straight from the file system with an exact {@code Content-Length}, using {@code sendfile} if the
+     * connection allows it and a {@link org.jboss.netty.handler.stream.ChunkedWriteHandler} in the pipeline
+     * otherwise. They are never compressed. Always off if the application registers writer interceptors.
+     */
+    public static final String PROPERTY_SEND_FILES = "org.graylog2.jersey.container.netty.response.sendFiles";
+
+    /**
+     * If {@code true}, response entities are compressed with {@code gzip} or {@code deflate} for clients accepting
+     * either of them, unless the application set a {@code Content-Encoding} itself. Off by default. See
+     * {@link ResponseCompression}.
+     */
+    public static final String PROPERTY_RESPONSE_COMPRESSION = "org.graylog2.jersey.container.netty.response.compression";
+    /**
+     * Compression level from {@code 1} (fastest) to {@code 9} (smallest). Defaults to
+     * {@value #DEFAULT_RESPONSE_COMPRESSION_LEVEL}.
+     */
+    public static final String PROPERTY_RESPONSE_COMPRESSION_LEVEL = "org.graylog2.jersey.container.netty.response.compression.level";
+    /**
+     * Number of bytes below which entities are sent uncompressed. Defaults to
+     * {@value #DEFAULT_RESPONSE_COMPRESSION_THRESHOLD}.
+     */
+    public static final String PROPERTY_RESPONSE_COMPRESSION_THRESHOLD = "org.graylog2.jersey.container.netty.response.compression.threshold";
+    /**
+     * Comma separated media types that are never compressed, e.g. {@code image/*}. Defaults to
+     * {@value #DEFAULT_RESPONSE_COMPRESSION_EXCLUDED_TYPES}.
+     */
+    public static final String PROPERTY_RESPONSE_COMPRESSION_EXCLUDED_TYPES = "org.graylog2.jersey.container.netty.response.compression.excludedTypes";
+
+    /**
+     * Number of bytes the responses kept by the response cache may take together. {@code 0}, the default, disables
+     * caching. Only responses to {@code GET} requests the application allows to be cached with
+     * {@code Cache-Control: max-age} are cached, see {@link ResponseCache}.
+     */
+    public static final String PROPERTY_RESPONSE_CACHE_SIZE = "org.graylog2.jersey.container.netty.responseCache.size";
+    /**
+     * Comma separated names of the request headers whose values are part of the key of cached responses. Responses
+     * that {@code Vary} by other headers are not cached, nor are requests with cookies unless {@code Cookie} is one of
+     * them. Defaults to {@value #DEFAULT_RESPONSE_CACHE_KEY_HEADERS}.
+     */
+    public static final String PROPERTY_RESPONSE_CACHE_KEY_HEADERS = "org.graylog2.jersey.container.netty.responseCache.keyHeaders";
+
+    /**
+     * Number of security contexts created for the {@code Authorization} headers of recent requests that are kept
+     * and handed out again for the same header, instead of creating a new one. {@code 0}, the default, disables
+     * caching. See {@link SecurityContextCache}.
+     */
+    public static final String PROPERTY_SECURITY_CONTEXT_CACHE_SIZE = "org.graylog2.jersey.container.netty.securityContextCache.size";
+    /**
+     * Milliseconds a cached security context is handed out after it has been created. Defaults to
+     * {@value #DEFAULT_SECURITY_CONTEXT_CACHE_TTL}.
+     */
+    public static final String PROPERTY_SECURITY_CONTEXT_CACHE_TTL = "org.graylog2.jersey.container.netty.securityContextCache.ttl";
+
+    /**
+     * Number of recently requested URIs whose resolution against the base URI is cached, for applications whose
+     * clients poll the same few URIs. {@code 0}, the default, disables caching.
+     */
+    public static final String PROPERTY_REQUEST_URI_CACHE_SIZE = "org.graylog2.jersey.container.netty.request.uriCacheSize";
+
+    /**
+     * Number of requests a client may send on a connection before it has received the responses to the earlier ones
+     * (HTTP pipelining). Responses are always sent in the order of the requests, those that are ready early are
+     * held back in memory. Once the limit is reached, the container stops reading from the connection until the
+     * oldest response has been sent. Defaults to {@value #DEFAULT_MAX_PIPELINED_REQUESTS}.
+     */
+    public static final String PROPERTY_MAX_PIPELINED_REQUESTS = "org.graylog2.jersey.container.netty.request.maxPipelined";
+    /**
+     * Number of bytes of responses to pipelined requests that may be held back on a connection while an earlier
+     * response is still being sent. Once it is exceeded, applications streaming later responses wait until their
+     * response is next in line, see {@link #PROPERTY_RESPONSE_WRITE_TIMEOUT}. Defaults to
+     * {@value #DEFAULT_MAX_HELD_BACK_RESPONSE_BYTES}.
+     */
+    public static final String PROPERTY_MAX_HELD_BACK_RESPONSE_BYTES = "org.graylog2.jersey.container.netty.response.maxHeldBackBytes";
+
+    public static final String EXECUTOR_DIRECT = "direct";
+    public static final String EXECUTOR_FIXED = "fixed";
+    public static final String EXECUTOR_WORK_STEALING = "work-stealing";
+    public static final int DEFAULT_EXECUTOR_MAX_QUEUED = 1024;
+    public static final int DEFAULT_REQUEST_BODY_WINDOW = 64 * 1024;
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 16;
+    public static final long DEFAULT_MAX_HELD_BACK_RESPONSE_BYTES = 1024 * 1024;
+    public static final long DEFAULT_MAX_DECOMPRESSED_REQUEST_BODY_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_RESPONSE_CHUNK_SIZE = 8192;
+    public static final long DEFAULT_RESPONSE_WRITE_TIMEOUT = 60 * 1000;
+    public static final long DEFAULT_SECURITY_CONTEXT_CACHE_TTL = 60 * 1000;
+    public static final String DEFAULT_RESPONSE_CACHE_KEY_HEADERS = "Accept,Accept-Encoding,Accept-Language";
+    public static final int DEFAULT_RESPONSE_COMPRESSION_LEVEL = 6;
+    public static final int DEFAULT_RESPONSE_COMPRESSION_THRESHOLD = 1024;
+    public static final String DEFAULT_RESPONSE_COMPRESSION_EXCLUDED_TYPES =
+            "image/*,audio/*,video/*,application/zip,application/gzip,application/x-gzip";
+    /**
+     * Jersey's default for {@link ServerProperties#OUTBOUND_CONTENT_LENGTH_BUFFER}.
+     */
+    public static final int DEFAULT_RESPONSE_BUFFER_SIZE = 8192;
+
+    private static final long SUSPEND_TIMER_TICK_MILLIS = 100;
+
     private final ApplicationHandler appHandler;
     private SecurityContextFactory securityContextFactory;
+    private final SecurityContextCache securityContextCache;
+    private final ResponseCache responseCache;
     private final URI baseUri;
+    private final RequestUriResolver requestUriResolver;
 
+    private final long maxRequestBodySize;
+    private final RequestBodyBudget requestBodyBudget;
     private final ChunkedRequestAssembler chunkedRequestAssembler;
+    private volatile RequestDispatcher requestDispatcher;
+    private volatile boolean streamRequestBodies;
+    private final long requestBodyWindow;
+    private final boolean decompressRequestBodies;
+    private final long maxDecompressedRequestBodySize;
+    private final int maxPipelinedRequests;
+    private final long maxHeldBackResponseBytes;
+    private final DateHeaderClock dateHeaderClock = new DateHeaderClock();
+    private final ResponseBufferPool responseBufferPool;
+    private final ResponseWriteThrottle responseWriteThrottle;
+    private final boolean responseBuffering;
+    private final int responseBufferSize;
+    private final ResponseCompression responseCompression;
+    private final int writeBufferHighWaterMark;
+    private final int writeBufferLowWaterMark;
+    private final HashedWheelTimer suspendTimer;
+    private final AtomicInteger suspendedResponses = new AtomicInteger();
+    private final PreEncodedEntityFilter preEncodedEntityFilter = new PreEncodedEntityFilter();
+    private volatile ContainerMetrics metrics = new DefaultContainerMetrics();
+    private final ConcurrentMap<ResourceMethod, String> resourceMethodNames = new ConcurrentHashMap<>();
 
     public NettyContainer(Application application) {
         this(application, null);
     }
 
     public NettyContainer(Application application, SecurityContextFactory securityContextFactory) {
-        this.appHandler = new ApplicationHandler(application);
+        this.appHandler = new ApplicationHandler(application, new AbstractBinder() {
+            @Override
+            protected void configure() {
+                bind(preEncodedEntityFilter).to(ContainerResponseFilter.class);
+            }
+        });
+        final int securityContextCacheSize = getProperty(PROPERTY_SECURITY_CONTEXT_CACHE_SIZE, 0, Integer.class);
+        this.securityContextCache = securityContextCacheSize > 0
+                ? new SecurityContextCache(securityContextCacheSize,
+                                           getProperty(PROPERTY_SECURITY_CONTEXT_CACHE_TTL, DEFAULT_SECURITY_CONTEXT_CACHE_TTL, Long.class))
+                : null;
         this.securityContextFactory = securityContextFactory;
+        announceSecurityContextCache(securityContextFactory);
+        final long responseCacheSize = getProperty(PROPERTY_RESPONSE_CACHE_SIZE, 0L, Long.class);
+        this.responseCache = responseCacheSize > 0
+                ? new ResponseCache(responseCacheSize,
+                                    getProperty(PROPERTY_RESPONSE_CACHE_KEY_HEADERS, DEFAULT_RESPONSE_CACHE_KEY_HEADERS, String.class))
+                : null;
         this.baseUri = (URI) this.getConfiguration().getProperty(PROPERTY_BASE_URI);
-        this.chunkedRequestAssembler = new ChunkedRequestAssembler();
+        this.requestUriResolver = new RequestUriResolver(baseUri, getProperty(PROPERTY_REQUEST_URI_CACHE_SIZE, 0, Integer.class));
+        this.maxRequestBodySize = getProperty(PROPERTY_MAX_REQUEST_BODY_SIZE, Long.MAX_VALUE, Long.class);
+        this.requestBodyBudget = new RequestBodyBudget(getProperty(PROPERTY_REQUEST_BODY_BUDGET, 0L, Long.class));
+        this.chunkedRequestAssembler = new ChunkedRequestAssembler(
+                getProperty(PROPERTY_MAX_COMPOSITE_COMPONENTS, ChunkedRequestAssembler.DEFAULT_MAX_COMPOSITE_COMPONENTS, Integer.class),
+                maxRequestBodySize,
+                requestBodyBudget);
+        this.requestDispatcher = createRequestDispatcher();
+        this.requestBodyWindow = getProperty(PROPERTY_REQUEST_BODY_WINDOW, DEFAULT_REQUEST_BODY_WINDOW, Integer.class);
+        this.streamRequestBodies = getProperty(PROPERTY_STREAM_REQUEST_BODIES, false, Boolean.class);
+        this.decompressRequestBodies = getProperty(PROPERTY_REQUEST_DECOMPRESSION, false, Boolean.class);
+        this.maxDecompressedRequestBodySize = getProperty(PROPERTY_MAX_DECOMPRESSED_REQUEST_BODY_SIZE,
+                                                          DEFAULT_MAX_DECOMPRESSED_REQUEST_BODY_SIZE, Long.class);
+        this.maxPipelinedRequests = Math.max(1, getProperty(PROPERTY_MAX_PIPELINED_REQUESTS, DEFAULT_MAX_PIPELINED_REQUESTS, Integer.class));
+        this.maxHeldBackResponseBytes = Math.max(0, getProperty(PROPERTY_MAX_HELD_BACK_RESPONSE_BYTES, DEFAULT_MAX_HELD_BACK_RESPONSE_BYTES, Long.class));
+        checkRequestBodyStreaming();
+        this.responseBufferPool = new ResponseBufferPool(
+                getProperty(PROPERTY_RESPONSE_CHUNK_SIZE, DEFAULT_RESPONSE_CHUNK_SIZE, Integer.class),
+                ResponseBufferPool.DEFAULT_MAX_POOLED);
+        this.responseWriteThrottle = new ResponseWriteThrottle(
+                getProperty(PROPERTY_RESPONSE_WRITE_TIMEOUT, DEFAULT_RESPONSE_WRITE_TIMEOUT, Long.class));
+        this.writeBufferHighWaterMark = getProperty(PROPERTY_WRITE_BUFFER_HIGH_WATER_MARK, 0, Integer.class);
+        this.writeBufferLowWaterMark = getProperty(PROPERTY_WRITE_BUFFER_LOW_WATER_MARK, 0, Integer.class);
+        this.responseBuffering = getProperty(PROPERTY_RESPONSE_BUFFERING, true, Boolean.class);
+        final boolean writerInterceptors = hasWriterInterceptors(getConfiguration());
+        preEncodedEntityFilter.setEnabled(getProperty(PROPERTY_PRE_ENCODE_ENTITIES, true, Boolean.class)
+                                                  && !writerInterceptors);
+        preEncodedEntityFilter.setSendingFiles(getProperty(PROPERTY_SEND_FILES, true, Boolean.class)
+                                                       && !writerInterceptors);
+        this.responseBufferSize = getProperty(ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, DEFAULT_RESPONSE_BUFFER_SIZE, Integer.class);
+        this.responseCompression = getProperty(PROPERTY_RESPONSE_COMPRESSION, false, Boolean.class)
+                ? new ResponseCompression(
+                        getProperty(PROPERTY_RESPONSE_COMPRESSION_LEVEL, DEFAULT_RESPONSE_COMPRESSION_LEVEL, Integer.class),
+                        getProperty(PROPERTY_RESPONSE_COMPRESSION_THRESHOLD, DEFAULT_RESPONSE_COMPRESSION_THRESHOLD, Integer.class),
+                        getProperty(PROPERTY_RESPONSE_COMPRESSION_EXCLUDED_TYPES, DEFAULT_RESPONSE_COMPRESSION_EXCLUDED_TYPES, String.class))
+                : null;
+        // the timer thread is only started once the first response is suspended
+        this.suspendTimer = new HashedWheelTimer(
+                new ThreadFactoryBuilder().setNameFormat("jersey-netty-suspend-timer-%d").setDaemon(true).build(),
+                SUSPEND_TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean hasWriterInterceptors(Configuration configuration) {
+        for (Class<?> componentClass : configuration.getClasses()) {
+            if (WriterInterceptor.class.isAssignableFrom(componentClass)) {
+                return true;
+            }
+        }
+        for (Object component : configuration.getInstances()) {
+            if (component instanceof WriterInterceptor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private <T> T getProperty(String name, T defaultValue, Class<T> type) {
+        // jersey refuses to convert between the number types, e.g. a size given as Integer for a Long property
+        final Object value = getConfiguration().getProperty(name);
+        if (value instanceof Number && type == Long.class) {
+            return type.cast(((Number) value).longValue());
+        }
+        if (value instanceof Number && type == Integer.class) {
+            return type.cast(((Number) value).intValue());
+        }
+        return ServerProperties.getValue(getConfiguration().getProperties(), name, defaultValue, type);
+    }
+
+    private void checkRequestBodyStreaming() {
+        if (streamRequestBodies && requestDispatcher.isDirect()) {
+            log.warn("Streaming request bodies requires a request executor, falling back to buffering them.");
+            streamRequestBodies = false;
+        }
+    }
+
+    private RequestDispatcher createRequestDispatcher() {
+        final String executor = getProperty(PROPERTY_EXECUTOR, EXECUTOR_DIRECT, String.class);
+        final int threads = getProperty(PROPERTY_EXECUTOR_THREADS, Runtime.getRuntime().availableProcessors(), Integer.class);
+        final int maxQueued = getMaxQueued();
+
+        switch (executor) {
+            case EXECUTOR_DIRECT:
+                return RequestDispatcher.direct();
+            case EXECUTOR_FIXED:
+                return RequestDispatcher.fixed(threads, maxQueued);
+            case EXECUTOR_WORK_STEALING:
+                return RequestDispatcher.workStealing(threads, maxQueued);
+            default:
+                throw new IllegalArgumentException("Unknown value for " + PROPERTY_EXECUTOR + ": " + executor);
+        }
+    }
+
+    private int getMaxQueued() {
+        return getProperty(PROPERTY_EXECUTOR_MAX_QUEUED, DEFAULT_EXECUTOR_MAX_QUEUED, Integer.class);
     }
 
     public void setSecurityContextFactory(SecurityContextFactory securityContextFactory) {
         this.securityContextFactory = securityContextFactory;
+        if (securityContextCache != null) {
+            // contexts created by the previous factory must not be handed out anymore
+            securityContextCache.invalidateAll();
+        }
+        announceSecurityContextCache(securityContextFactory);
     }
 
-    private static final class NettyResponseWriter implements ContainerResponseWriter {
+    private void announceSecurityContextCache(SecurityContextFactory securityContextFactory) {
+        if (securityContextFactory instanceof CacheAwareSecurityContextFactory) {
+            ((CacheAwareSecurityContextFactory) securityContextFactory).setSecurityContextCache(securityContextCache);
+        }
+    }
+
+    /**
+     * @return the cache of security contexts, {@code null} if {@link #PROPERTY_SECURITY_CONTEXT_CACHE_SIZE} is not set
+     */
+    public SecurityContextCache getSecurityContextCache() {
+        return securityContextCache;
+    }
+
+    /**
+     * @return the cache of responses, {@code null} if {@link #PROPERTY_RESPONSE_CACHE_SIZE} is not set
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Run the Jersey application on the given executor instead of the configured one. The executor is not shut down
+     * by the container.
+     */
+    public void setRequestExecutor(Executor executor) {
+        final RequestDispatcher previous = requestDispatcher;
+        requestDispatcher = RequestDispatcher.forExecutor(executor, getMaxQueued());
+        previous.shutdown();
+        streamRequestBodies = getProperty(PROPERTY_STREAM_REQUEST_BODIES, false, Boolean.class);
+    }
+
+    /**
+     * @return the dispatcher handing requests to the Jersey application, mostly useful for its queue statistics.
+     */
+    public RequestDispatcher getRequestDispatcher() {
+        return requestDispatcher;
+    }
+
+    /**
+     * @return the assembler of chunked requests, mostly useful for the number of requests and bytes it holds.
+     */
+    public ChunkedRequestAssembler getChunkedRequestAssembler() {
+        return chunkedRequestAssembler;
+    }
+
+    /**
+     * @return the memory budget of the buffered request bodies.
+     */
+    public RequestBodyBudget getRequestBodyBudget() {
+        return requestBodyBudget;
+    }
+
+    /**
+     * @return the throttle of threads writing responses faster than clients read them, mostly useful for how often
+     *         and how long they have been waiting.
+     */
+    public ResponseWriteThrottle getResponseWriteThrottle() {
+        return responseWriteThrottle;
+    }
+
+    /**
+     * @return the compression of response entities, {@code null} if {@link #PROPERTY_RESPONSE_COMPRESSION} is not set
+     */
+    public ResponseCompression getResponseCompression() {
+        return responseCompression;
+    }
+
+    /**
+     * Hands the measurements of the container to the given metrics instead of the {@link DefaultContainerMetrics}
+     * it starts with.
+     */
+    public void setMetrics(ContainerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ContainerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of responses suspended by the application, e.g. through {@code @Suspended AsyncResponse},
+     *         that have neither been resumed nor timed out yet.
+     */
+    public int getSuspendedResponses() {
+        return suspendedResponses.get();
+    }
+
+    /**
+     * Releases the resources held by the container, like the threads of the request executor. Requests still being
+     * processed are allowed to finish, but suspended responses won't time out anymore.
+     */
+    public void shutdown() {
+        requestDispatcher.shutdown();
+        suspendTimer.stop();
+    }
+
+    final class NettyResponseWriter implements ContainerResponseWriter {
 
         private final HttpVersion protocolVersion;
         private final boolean connectionClose;
         private final Channel channel;
+        private final ChannelState channelState;
+        private final long sequence;
+        private final String acceptedEncoding;
         private DefaultHttpResponse httpResponse;
+        private ChunkedResponseOutputStream responseStream;
+        // the content encoding the entity is compressed with, null if it is sent as it is
+        private String compression;
+        private OutputStream compressingStream;
+        private ResponseCache.Key cacheKey;
+        private final ContainerMetrics metrics = NettyContainer.this.metrics;
+        private final long startedAt = System.nanoTime();
+        private String resourceMethod;
+        private int status = HttpResponseStatus.INTERNAL_SERVER_ERROR.getCode();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private ChannelBuffer entityContent;
+        // the buffer of the entity if it came from the ResponseBufferPool, to be returned once it has been written
+        private ChannelBuffer pooledContent;
+        private FileEntity fileEntity;
+        // the Range and If-Range headers of a GET request
+        private String rangeHeader;
+        private String ifRangeHeader;
+        // the ranges of the file entity to send, null to send all of it
+        private ByteRanges fileRanges;
+
+        // guarded by this
+        private TimeoutHandler timeoutHandler;
+        private Timeout suspendTimeout;
 
-        public NettyResponseWriter(HttpVersion protocolVersion, boolean connectionClose, Channel channel) {
+        /**
+         * @param sequence         the sequence number of the request in the {@link ResponseSequencer} of the connection
+         * @param acceptedEncoding the content encoding negotiated with the client, {@code null} to not compress
+         */
+        public NettyResponseWriter(HttpVersion protocolVersion, boolean connectionClose, ChannelState channelState,
+                                   long sequence, String acceptedEncoding) {
             this.protocolVersion = protocolVersion;
             this.connectionClose = connectionClose;
-            this.channel = channel;
+            this.channel = channelState.getChannel();
+            this.channelState = channelState;
+            this.sequence = sequence;
+            this.acceptedEncoding = acceptedEncoding;
+        }
+
+        private ChannelFuture write(Object message) {
+            return channelState.getResponseSequencer().write(sequence, message);
+        }
+
+        /**
+         * Offers the response to the {@link ResponseCache} under the given key once it is complete.
+         */
+        void cacheAs(ResponseCache.Key cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+
+        /**
+         * Sets the complete entity of the response, to be sent instead of anything Jersey might write.
+         */
+        void setEntityContent(ChannelBuffer entityContent) {
+            this.entityContent = entityContent;
+        }
+
+        /**
+         * @return {@code true} if the connection can be sent a {@link FileEntity}, i.e. it either allows zero-copy
+         *         writes or has a {@link ChunkedWriteHandler} to read the file
+         */
+        boolean canSendFiles() {
+            return isZeroCopyPossible() || channel.getPipeline().get(ChunkedWriteHandler.class) != null;
+        }
+
+        private boolean isZeroCopyPossible() {
+            // file regions bypass the ssl handler, and only the nio transport transfers them without reading them
+            return channel instanceof NioSocketChannel && channel.getPipeline().get(SslHandler.class) == null;
+        }
+
+        /**
+         * Sets a file as the entity of the response, to be sent instead of anything Jersey might write. The writer
+         * closes the file.
+         */
+        void setFileEntity(FileEntity fileEntity) {
+            this.fileEntity = fileEntity;
+        }
+
+        /**
+         * Sends only the given byte ranges of file and pre-encoded entities, see {@link ByteRanges}.
+         */
+        void rangeRequested(String rangeHeader, String ifRangeHeader) {
+            this.rangeHeader = rangeHeader;
+            this.ifRangeHeader = ifRangeHeader;
         }
 
         @Override
         public OutputStream writeResponseStatusAndHeaders(long contentLength, ContainerResponse responseContext) throws ContainerException {
+            resumed();
             httpResponse = new DefaultHttpResponse(protocolVersion, HttpResponseStatus.valueOf(responseContext.getStatus()));
+            status = responseContext.getStatus();
+            resourceMethod = resourceMethodName(responseContext);
 
-            long length = contentLength;
-            if (length == -1 && responseContext.getEntity() instanceof String) { // TODO there's got to be a better way...
-                final String entity = (String) responseContext.getEntity();
-                final byte[] encodedBytes = entity.getBytes(Charset.forName("UTF-8"));
-                length = encodedBytes.length;
-            }
-            if (! responseContext.getHeaders().containsKey(HttpHeaders.Names.CONTENT_LENGTH)) {
+            // jersey hands us no entity if the PreEncodedEntityFilter encoded it already
+            final long length = fileEntity != null
+                    ? fileEntity.getCount()
+                    : entityContent != null ? entityContent.readableBytes() : contentLength;
+            if (length >= 0 && !responseContext.getHeaders().containsKey(HttpHeaders.Names.CONTENT_LENGTH)) {
                 HttpHeaders.setContentLength(httpResponse, length);
-                log.trace("Writing response status and headers {}, length {}", responseContext, length);
             }
+            log.trace("Writing response status and headers {}, length {}", responseContext, length);
 
             for (Map.Entry<String, List<String>> headerEntry : responseContext.getStringHeaders().entrySet()) {
-                HttpHeaders.addHeader(httpResponse, headerEntry.getKey(), join(headerEntry.getValue(), ", "));
+                // one header line per value, joining them would break Set-Cookie anyway
+                httpResponse.headers().add(headerEntry.getKey(), headerEntry.getValue());
+            }
+            if (!httpResponse.headers().contains(HttpHeaders.Names.DATE)) {
+                httpResponse.headers().set(HttpHeaders.Names.DATE, dateHeaderClock.get());
+            }
+
+            if (fileEntity != null && status == HttpResponseStatus.OK.getCode()) {
+                httpResponse.headers().set(HttpHeaders.Names.ACCEPT_RANGES, "bytes");
+            }
+            if (rangeHeader != null && (fileEntity != null || entityContent != null)) {
+                applyRanges();
+            }
+
+            if (fileEntity != null) {
+                // the exact length is known, whatever the application claimed. jersey doesn't write anything.
+                HttpHeaders.setContentLength(httpResponse,
+                                             fileRanges != null ? fileRanges.getContentLength() : fileEntity.getCount());
+                return new ChannelBufferOutputStream(ChannelBuffers.EMPTY_BUFFER);
+            }
+
+            final long knownLength = HttpHeaders.getContentLength(httpResponse, -1L);
+            compression = negotiateCompression(responseContext, knownLength);
+            if (compression != null) {
+                httpResponse.headers().set(HttpHeaders.Names.CONTENT_ENCODING, compression);
+                // the length of the compressed entity is only known once it has been written
+                httpResponse.headers().remove(HttpHeaders.Names.CONTENT_LENGTH);
+            }
+
+            if (entityContent != null) {
+                if (compression != null) {
+                    try {
+                        entityContent = responseCompression.compress(entityContent, compression);
+                    } catch (IOException e) {
+                        throw new ContainerException(e);
+                    }
+                }
+                // the exact bytes are known, whatever the application claimed
+                HttpHeaders.setContentLength(httpResponse, entityContent.readableBytes());
+                httpResponse.setContent(entityContent);
+                // jersey doesn't write anything to it
+                return new ChannelBufferOutputStream(ChannelBuffers.EMPTY_BUFFER);
             }
 
-            if (protocolVersion.equals(HttpVersion.HTTP_1_1) && HttpHeaders.getContentLength(httpResponse, -3L) != -3L) {
+            // small responses are sent in one piece, jersey knows their length if it buffered them for us
+            final boolean fitsBuffer = knownLength >= 0 && knownLength <= responseBufferSize;
+            if (protocolVersion.equals(HttpVersion.HTTP_1_1) && !fitsBuffer) {
                 httpResponse.setChunked(true);
                 HttpHeaders.setTransferEncodingChunked(httpResponse);
                 // write the first chunk's headers right away
-                channel.write(httpResponse);
-
-                // be sure to copy the arrays into buffers here, because they get re-used internally!
-                return new OutputStream() {
-                    @Override
-                    public void write(byte[] b, int off, int len) {
-                        final ChannelBuffer buffer = ChannelBuffers.copiedBuffer(b, off, len);
-                        if (log.isTraceEnabled()) {
-                            log.trace("writing data: {}", buffer.toString(Charset.defaultCharset()));
-                        }
-                        channel.write(new DefaultHttpChunk(buffer));
-                        if (log.isDebugEnabled()) {
-                            log.debug("wrote {} bytes as chunk", len);
-                        }
-                    }
+                write(httpResponse);
 
-                    @Override
-                    public void write(int b) {
-                        ChannelBuffer content = ChannelBuffers.copiedBuffer(new byte[]{(byte) b});
-                        if (log.isTraceEnabled()) {
-                            log.trace("writing data: {}", content.toString(Charset.defaultCharset()));
-                        }
-                        channel.write(new DefaultHttpChunk(content));
+                responseStream = new ChunkedResponseOutputStream(channelState, sequence, responseBufferPool,
+                                                                 responseWriteThrottle, metrics);
+                if (compression != null) {
+                    try {
+                        compressingStream = responseCompression.compress(responseStream, compression);
+                    } catch (IOException e) {
+                        throw new ContainerException(e);
                     }
-                };
+                    return compressingStream;
+                }
+                return responseStream;
             } else {
                 // we also need to write the response into the same http message if we don't chunk the response.
-                httpResponse.setContent(ChannelBuffers.dynamicBuffer());
+                if (fitsBuffer && knownLength > 0 && knownLength <= responseBufferPool.getBufferSize()) {
+                    pooledContent = responseBufferPool.acquire();
+                    httpResponse.setContent(pooledContent);
+                    return new PooledContentOutputStream();
+                }
+                httpResponse.setContent(fitsBuffer ? ChannelBuffers.dynamicBuffer((int) knownLength) : ChannelBuffers.dynamicBuffer());
                 return new ChannelBufferOutputStream(httpResponse.getContent());
             }
         }
 
-        private static String join(Iterable<String> list, String delimiter) {
-            final StringBuilder sb = new StringBuilder();
-            String currentDelimiter = "";
-
-            for(String o : list) {
-                sb.append(currentDelimiter).append(o);
-                currentDelimiter = delimiter;
+        /**
+         * Narrows the entity down to the ranges requested, if they can be sent for it.
+         */
+        private void applyRanges() {
+            if (status != HttpResponseStatus.OK.getCode()
+                    || httpResponse.headers().contains(HttpHeaders.Names.CONTENT_ENCODING)
+                    || !ByteRanges.ifRangeMatches(ifRangeHeader,
+                                                  httpResponse.headers().get(HttpHeaders.Names.ETAG),
+                                                  httpResponse.headers().get(HttpHeaders.Names.LAST_MODIFIED))) {
+                return;
             }
+            final long entityLength = fileEntity != null ? fileEntity.getCount() : entityContent.readableBytes();
+            final ByteRanges ranges = ByteRanges.parse(rangeHeader, entityLength,
+                                                       httpResponse.headers().get(HttpHeaders.Names.CONTENT_TYPE));
+            if (ranges == null) {
+                return;
+            }
+            if (!ranges.isSatisfiable()) {
+                setStatus(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                httpResponse.headers().set(HttpHeaders.Names.CONTENT_RANGE, ranges.getContentRange());
+                closeFileEntity();
+                entityContent = ChannelBuffers.EMPTY_BUFFER;
+                return;
+            }
+            setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+            if (ranges.isMultipart()) {
+                httpResponse.headers().set(HttpHeaders.Names.CONTENT_TYPE, ranges.getMultipartContentType());
+            } else {
+                httpResponse.headers().set(HttpHeaders.Names.CONTENT_RANGE, ranges.getContentRange());
+            }
+            if (fileEntity != null) {
+                fileRanges = ranges;
+            } else {
+                entityContent = ranges.slice(entityContent);
+            }
+        }
 
-            return sb.toString();
+        private void setStatus(HttpResponseStatus responseStatus) {
+            httpResponse.setStatus(responseStatus);
+            status = responseStatus.getCode();
+        }
+
+        /**
+         * @param length the length of the uncompressed entity, {@code -1} if not known yet
+         * @return the content encoding to compress the entity of the response with, {@code null} to send it as it is
+         */
+        private String negotiateCompression(ContainerResponse responseContext, long length) {
+            if (responseCompression == null || length == 0
+                    || httpResponse.headers().contains(HttpHeaders.Names.CONTENT_ENCODING)) {
+                return null;
+            }
+            final int status = httpResponse.getStatus().getCode();
+            // byte ranges refer to the uncompressed entity
+            if (status < 200 || status == 204 || status == 206 || status == 304 || status == 416
+                    || HttpMethod.HEAD.equals(responseContext.getRequestContext().getMethod())) {
+                return null;
+            }
+            if (!responseCompression.isCompressible(responseContext.getMediaType(), length)) {
+                return null;
+            }
+            // caches must not hand the compressed entity to clients that did not ask for it
+            httpResponse.headers().add(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+            return acceptedEncoding;
         }
 
         @Override
         public boolean suspend(long timeOut, TimeUnit timeUnit, TimeoutHandler timeoutHandler) {
-            // TODO do we want to support this?
-            log.debug("Trying to suspend for {} ms, handler {}", timeUnit.toMillis(timeOut), timeoutHandler);
-            return false;
+            log.debug("Suspending for {} ms, handler {}", timeUnit.toMillis(timeOut), timeoutHandler);
+            synchronized (this) {
+                if (this.timeoutHandler != null) {
+                    return false;
+                }
+                this.timeoutHandler = timeoutHandler;
+                scheduleSuspendTimeout(timeOut, timeUnit);
+                suspendedResponses.incrementAndGet();
+                channelState.addSuspendedWriter(this);
+            }
+            if (!channel.isOpen()) {
+                // closed before we were registered, channelClosed won't see us
+                cancelSuspension();
+            }
+            return true;
         }
 
         @Override
-        public void setSuspendTimeout(long timeOut, TimeUnit timeUnit) throws IllegalStateException {
-            // TODO do we want to support this?
+        public synchronized void setSuspendTimeout(long timeOut, TimeUnit timeUnit) throws IllegalStateException {
+            if (timeoutHandler == null) {
+                throw new IllegalStateException("Response is not suspended");
+            }
             log.debug("Setting suspend timeout to {} ms", timeUnit.toMillis(timeOut));
+            if (suspendTimeout != null) {
+                suspendTimeout.cancel();
+            }
+            scheduleSuspendTimeout(timeOut, timeUnit);
+        }
+
+        // must hold this
+        private void scheduleSuspendTimeout(long timeOut, TimeUnit timeUnit) {
+            if (timeOut <= 0) {
+                // AsyncResponse.NO_TIMEOUT
+                suspendTimeout = null;
+                return;
+            }
+            suspendTimeout = suspendTimer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) {
+                    final TimeoutHandler handler;
+                    synchronized (NettyResponseWriter.this) {
+                        if (timeout != suspendTimeout) {
+                            // resumed or rescheduled in the meantime
+                            return;
+                        }
+                        suspendTimeout = null;
+                        handler = timeoutHandler;
+                    }
+                    fireTimeout(handler);
+                }
+            }, timeOut, timeUnit);
+        }
+
+        private void fireTimeout(final TimeoutHandler handler) {
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    handler.onTimeout(NettyResponseWriter.this);
+                }
+            };
+            // jersey writes the timeout response right away, which we don't want to do on the timer thread
+            if (!requestDispatcher.dispatch(channelState, task)) {
+                task.run();
+            }
+        }
+
+        /**
+         * Forgets the suspension when Jersey starts writing the response.
+         */
+        private synchronized void resumed() {
+            if (timeoutHandler == null) {
+                return;
+            }
+            timeoutHandler = null;
+            if (suspendTimeout != null) {
+                suspendTimeout.cancel();
+                suspendTimeout = null;
+            }
+            suspendedResponses.decrementAndGet();
+            channelState.removeSuspendedWriter(this);
+        }
+
+        /**
+         * Called when the connection of a suspended response has been closed. Jersey is told that the response timed
+         * out, so that the application can give up waiting for it.
+         */
+        void cancelSuspension() {
+            final TimeoutHandler handler;
+            synchronized (this) {
+                handler = timeoutHandler;
+                if (handler == null) {
+                    return;
+                }
+                if (suspendTimeout != null) {
+                    suspendTimeout.cancel();
+                    suspendTimeout = null;
+                }
+            }
+            fireTimeout(handler);
         }
 
         @Override
         public void commit() {
-            if (channel.isOpen()) {
+            final long committedAt = System.nanoTime();
+            try {
+                writeRest();
+            } finally {
+                // let the responses to the requests pipelined after this one through
+                channelState.getResponseSequencer().complete(sequence);
+                metrics.responseCommitted(System.nanoTime() - committedAt);
+                completed(status);
+            }
+        }
+
+        /**
+         * Tells the metrics that the request is done, only the first time it is called.
+         */
+        void completed(int status) {
+            if (completed.compareAndSet(false, true)) {
+                metrics.requestCompleted(resourceMethod, status, System.nanoTime() - startedAt);
+            }
+        }
+
+        private void writeRest() {
+            if (!channel.isOpen()) {
+                closeFileEntity();
+            } else {
                 final ChannelFuture channelFuture;
-                if (httpResponse.isChunked()) {
+                if (fileEntity != null) {
+                    channelFuture = writeFileEntity();
+                    if (channelFuture == null) {
+                        return;
+                    }
+                } else if (httpResponse.isChunked()) {
+                    if (responseStream != null) {
+                        // send whatever the application has written since the last chunk
+                        try {
+                            if (compressingStream != null) {
+                                // writes the end of the compressed data, too
+                                compressingStream.close();
+                            } else {
+                                responseStream.flush();
+                            }
+                        } catch (IOException e) {
+                            log.debug("Could not write the rest of the response to {}", channel.getRemoteAddress(), e);
+                            return;
+                        }
+                    }
                     if (log.isTraceEnabled()) {
                         log.trace("Writing last chunk to {}", channel.getRemoteAddress());
                     }
-                    channelFuture = channel.write(new DefaultHttpChunkTrailer());
+                    channelFuture = write(new DefaultHttpChunkTrailer());
                 } else {
                     // we don't chunk the response so we simply write it in one go.
+                    if (compression != null && !compressBufferedContent()) {
+                        return;
+                    }
+                    if (!httpResponse.headers().contains(HttpHeaders.Names.CONTENT_LENGTH)) {
+                        HttpHeaders.setContentLength(httpResponse, httpResponse.getContent().readableBytes());
+                    }
                     if (log.isTraceEnabled()) {
                         log.trace("Writing entire {} bytes to client {}",
                                   httpResponse.getContent().readableBytes(),
                                   channel.getRemoteAddress());
                     }
-                    channelFuture = channel.write(httpResponse);
+                    if (cacheKey != null) {
+                        responseCache.put(cacheKey, httpResponse);
+                    }
+                    metrics.responseBodyWritten(httpResponse.getContent().readableBytes(), false);
+                    channelFuture = write(httpResponse);
+                    releasePooledContent(channelFuture);
                 }
                 if (connectionClose) {
                     log.debug("Closing connection to {}", channel.getRemoteAddress());
@@ -214,8 +981,151 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
             }
         }
 
+        /**
+         * Writes the headers of the response followed by the file.
+         *
+         * @return the future of the last write, {@code null} if the file could not be read and the connection has
+         *         been closed
+         */
+        private ChannelFuture writeFileEntity() {
+            final FileEntity file = fileEntity;
+            fileEntity = null;
+            if (log.isTraceEnabled()) {
+                log.trace("Writing file of {} bytes to client {}", file.getCount(), channel.getRemoteAddress());
+            }
+            final ChannelFuture headersWritten = write(httpResponse);
+            if (file.getCount() == 0) {
+                file.close();
+                return headersWritten;
+            }
+            final boolean zeroCopy = isZeroCopyPossible();
+            final int chunkSize = responseBufferPool.getBufferSize();
+            final List<Object> messages = new ArrayList<>();
+            try {
+                if (fileRanges == null) {
+                    messages.add(file.toMessage(zeroCopy, chunkSize));
+                } else if (!fileRanges.isMultipart()) {
+                    final ByteRanges.Range range = fileRanges.getRanges().get(0);
+                    messages.add(file.toMessage(range.getFirst(), range.getLength(), zeroCopy, chunkSize));
+                } else {
+                    for (ByteRanges.Range range : fileRanges.getRanges()) {
+                        messages.add(fileRanges.partHeader(range));
+                        messages.add(file.toMessage(range.getFirst(), range.getLength(), zeroCopy, chunkSize));
+                    }
+                    messages.add(fileRanges.closingDelimiter());
+                }
+            } catch (IOException e) {
+                log.debug("Could not read the file of the response to {}", channel.getRemoteAddress(), e);
+                file.close();
+                channel.close();
+                return null;
+            }
+            metrics.responseBodyWritten(HttpHeaders.getContentLength(httpResponse), false);
+            ChannelFuture fileWritten = null;
+            for (Object message : messages) {
+                fileWritten = write(message);
+            }
+            fileWritten.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    file.close();
+                }
+            });
+            return fileWritten;
+        }
+
+        private void closeFileEntity() {
+            if (fileEntity != null) {
+                fileEntity.close();
+                fileEntity = null;
+            }
+        }
+
+        /**
+         * Returns the pooled buffer of the entity once it has been written, unless the {@link ResponseCache} may have
+         * kept it.
+         */
+        private void releasePooledContent(ChannelFuture written) {
+            final ChannelBuffer content = pooledContent;
+            if (content == null || cacheKey != null) {
+                return;
+            }
+            pooledContent = null;
+            if (httpResponse.getContent() != content) {
+                // the compressed copy was sent
+                responseBufferPool.release(content);
+                return;
+            }
+            written.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (future.isSuccess()) {
+                        responseBufferPool.release(content);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Writes the entity into its pooled buffer. An application writing more than the length it announced gets
+         * the entity moved to a dynamic buffer instead of running out of room, and the pooled buffer is returned.
+         */
+        private final class PooledContentOutputStream extends OutputStream {
+            @Override
+            public void write(int b) {
+                ensureWritable(1).writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                ensureWritable(len).writeBytes(b, off, len);
+            }
+
+            private ChannelBuffer ensureWritable(int length) {
+                final ChannelBuffer content = httpResponse.getContent();
+                if (content != pooledContent || content.writableBytes() >= length) {
+                    return content;
+                }
+                final ChannelBuffer grown = ChannelBuffers.dynamicBuffer(content.readableBytes() + length);
+                grown.writeBytes(content);
+                httpResponse.setContent(grown);
+                pooledContent = null;
+                responseBufferPool.release(content);
+                return grown;
+            }
+        }
+
+        /**
+         * Compresses the entity buffered for a response that is not chunked, unless it turned out to be smaller
+         * than the threshold.
+         *
+         * @return {@code false} if compressing failed and the connection has been closed
+         */
+        private boolean compressBufferedContent() {
+            final ChannelBuffer content = httpResponse.getContent();
+            if (entityContent != null) {
+                // compressed already
+                return true;
+            }
+            if (content.readableBytes() < responseCompression.getThreshold()) {
+                httpResponse.headers().remove(HttpHeaders.Names.CONTENT_ENCODING);
+                return true;
+            }
+            try {
+                httpResponse.setContent(responseCompression.compress(content, compression));
+                HttpHeaders.setContentLength(httpResponse, httpResponse.getContent().readableBytes());
+                return true;
+            } catch (IOException e) {
+                log.debug("Could not compress the response to {}", channel.getRemoteAddress(), e);
+                channel.close();
+                return false;
+            }
+        }
+
         @Override
         public void failure(Throwable error) {
+            resumed();
+            closeFileEntity();
             log.error("Uncaught exception in transport layer. This is likely a bug, closing channel.", error);
             if (channel.isOpen()) {
                 if (channel.isWritable()) {
@@ -224,16 +1134,18 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
                         internalServerResponse.setContent(ChannelBuffers.wrappedBuffer(("Uncaught exception!\n"
                                 + error.getMessage()).getBytes("UTF-8")));
                     } catch (UnsupportedEncodingException ignored) {}
-                    channel.write(internalServerResponse).addListener(ChannelFutureListener.CLOSE);
+                    write(internalServerResponse).addListener(ChannelFutureListener.CLOSE);
                 } else {
                     channel.close();
                 }
             }
+            channelState.getResponseSequencer().complete(sequence);
+            completed(HttpResponseStatus.INTERNAL_SERVER_ERROR.getCode());
         }
 
         @Override
         public boolean enableResponseBuffering() {
-            return false;
+            return responseBuffering;
         }
     }
 
@@ -256,38 +1168,78 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final ChannelState channelState = ChannelState.get(ctx);
         HttpRequest httpRequest = null;
+        HttpRequest assembledRequest = null;
+        InputStream entityStream = null;
         if (e.getMessage() instanceof DefaultHttpRequest) {
             httpRequest = (DefaultHttpRequest) e.getMessage();
+            if (httpRequest.getContent().readable()) {
+                metrics.requestBodyReceived(httpRequest.getContent().readableBytes(), false);
+            }
+            if (HttpHeaders.getContentLength(httpRequest, -1L) > maxRequestBodySize) {
+                log.debug("Client announced a request body larger than {} bytes. Closing connection.", maxRequestBodySize);
+                requestEntityTooLarge(ctx);
+                return;
+            }
             if (httpRequest.isChunked()) {
-                chunkedRequestAssembler.setup(e.getChannel(), httpRequest);
-
                 String expectHeader = HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.EXPECT);
                 if (expectHeader != null && expectHeader.equals("100-continue")) {
                     final DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE);
-                    final ChannelFuture channelFuture = e.getChannel().write(response);
+                    // not before the responses to the requests pipelined before this one
+                    channelState.getResponseSequencer().writeInterim(response);
+                }
+
+                if (streamRequestBodies) {
+                    // hand the request to jersey right away, the chunks are passed on as they arrive
+                    entityStream = chunkedRequestAssembler.stream(channelState, httpRequest, requestBodyWindow);
+                } else {
+                    chunkedRequestAssembler.setup(channelState, httpRequest);
+                    return;
                 }
-                return;
             }
         }
         else if (e.getMessage() instanceof HttpChunk) {
             HttpChunk nextChunk = (HttpChunk)e.getMessage();
-            chunkedRequestAssembler.addChunk(e.getChannel(), nextChunk);
+            metrics.requestBodyReceived(nextChunk.getContent().readableBytes(), true);
+            final boolean streaming = chunkedRequestAssembler.isStreaming(channelState);
+            try {
+                chunkedRequestAssembler.addChunk(channelState, nextChunk);
+            } catch (TooLongFrameException tooLong) {
+                log.debug("Client sent a request body larger than {} bytes. Closing connection.", maxRequestBodySize);
+                if (streaming) {
+                    // the application is already handling the request, it will fail reading the rest of the body
+                    e.getChannel().close();
+                } else {
+                    requestEntityTooLarge(ctx);
+                }
+                return;
+            }
+            if (streaming) {
+                return;
+            }
 
             if (nextChunk.isLast()) {
-                httpRequest = chunkedRequestAssembler.assemble(e.getChannel());
+                final ChunkedRequestAssembler.PartialRequest partialRequest = channelState.getPartialRequest();
+                httpRequest = chunkedRequestAssembler.assemble(channelState);
+                if (httpRequest == null) {
+                    return;
+                }
+                metrics.requestAssembled(System.nanoTime() - partialRequest.getStartedAt());
+                assembledRequest = httpRequest;
             } else {
                 final DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE);
-                final ChannelFuture channelFuture = e.getChannel().write(response);
+                channelState.getResponseSequencer().writeInterim(response);
                 return;
             }
         }
 
         URI requestUri;
         try {
-            requestUri = baseUri.resolve(httpRequest.getUri());
+            requestUri = requestUriResolver.resolve(httpRequest.getUri());
         } catch (IllegalArgumentException throwable) {
             log.debug("Client sent invalid URL. Closing connection.");
+            releaseAssembled(assembledRequest);
             ExceptionEvent exceptionEvent = new DefaultExceptionEvent(ctx.getChannel(), throwable);
             invalidRequestSent(ctx, exceptionEvent);
             return;
@@ -297,25 +1249,62 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         if (securityContextFactory == null) {
             securityContextFactory = new DefaultSecurityContextFactory();
         }
-        // TODO we currently only support Basic Auth
-        String[] schemeCreds = extractBasicAuthCredentials(HttpHeaders.getHeader(httpRequest,
-                                                                                 HttpHeaders.Names.AUTHORIZATION));
-        String scheme = null;
-        String user = null;
-        String password = null;
-        if (schemeCreds != null) {
-            scheme = schemeCreds[0];
-            user = schemeCreds[1];
-            password = schemeCreds[2];
-        }
-
-        boolean isSecure = requestUri.getScheme().equalsIgnoreCase("https");
-        final SecurityContext securityContext = securityContextFactory.create(user,
-                                                                              password,
-                                                                              isSecure,
-                                                                              scheme,
-                                                                              ctx.getChannel().getRemoteAddress().toString());
-        ContainerRequest containerRequest = new ContainerRequest(
+        final String authorizationHeader = HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.AUTHORIZATION);
+        final boolean isSecure = requestUri.getScheme().equalsIgnoreCase("https");
+        final boolean cacheable = securityContextCache != null && authorizationHeader != null;
+        SecurityContext securityContext = cacheable ? securityContextCache.get(authorizationHeader, isSecure) : null;
+        if (securityContext == null) {
+            // TODO we currently only support Basic Auth
+            String[] schemeCreds = extractBasicAuthCredentials(authorizationHeader);
+            String scheme = null;
+            String user = null;
+            String password = null;
+            if (schemeCreds != null) {
+                scheme = schemeCreds[0];
+                user = schemeCreds[1];
+                password = schemeCreds[2];
+            }
+
+            securityContext = securityContextFactory.create(user,
+                                                            password,
+                                                            isSecure,
+                                                            scheme,
+                                                            ctx.getChannel().getRemoteAddress().toString());
+            if (cacheable) {
+                securityContext = securityContextCache.put(authorizationHeader, isSecure, user, securityContext);
+            }
+        }
+
+        // save the protocol version in case we encounter an exception, where we need it to construct the proper response
+        final HttpVersion protocolVersion = httpRequest.getProtocolVersion();
+        // for HTTP 1.0 we always close the connection after the request, for 1.1 we look at the Connection header
+        boolean closeConnection = protocolVersion == HttpVersion.HTTP_1_0;
+        final String connectionHeader = HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.CONNECTION);
+        if (connectionHeader != null && connectionHeader.equals("close")) {
+            closeConnection = true;
+        }
+
+        ResponseCache.Key cacheKey = null;
+        final String rangeHeader = HttpMethod.GET.equals(httpRequest.getMethod().getName())
+                ? HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.RANGE)
+                : null;
+        // cached responses are complete
+        if (responseCache != null && assembledRequest == null && entityStream == null && rangeHeader == null) {
+            final long lookedUpAt = System.nanoTime();
+            cacheKey = responseCache.key(httpRequest);
+            final HttpResponse cachedResponse = cacheKey == null ? null : responseCache.get(cacheKey, httpRequest, protocolVersion);
+            if (cachedResponse != null) {
+                sendCachedResponse(channelState, cachedResponse, closeConnection, lookedUpAt);
+                return;
+            }
+        }
+        if (responseCache != null && !HttpMethod.GET.equals(httpRequest.getMethod().getName())
+                && !HttpMethod.HEAD.equals(httpRequest.getMethod().getName())) {
+            // the request may change what is cached for its URI
+            responseCache.invalidate(httpRequest.getUri());
+        }
+
+        final ContainerRequest containerRequest = new ContainerRequest(
                 baseUri,
                 requestUri,
                 httpRequest.getMethod().getName(),
@@ -325,11 +1314,20 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         final SocketAddress remoteAddress = ctx.getChannel().getRemoteAddress();
         containerRequest.setProperty(REQUEST_PROPERTY_REMOTE_ADDR, remoteAddress);
 
-        // save the protocol version in case we encounter an exception, where we need it to construct the proper response
-        final HttpVersion protocolVersion = httpRequest.getProtocolVersion();
-        ctx.setAttachment(httpRequest);
+        channelState.setRequest(httpRequest);
 
-        containerRequest.setEntityStream(new ChannelBufferInputStream(httpRequest.getContent()));
+        if (entityStream == null) {
+            entityStream = new ChannelBufferInputStream(httpRequest.getContent());
+        }
+        final String contentEncoding = decompressRequestBodies
+                ? HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.CONTENT_ENCODING)
+                : null;
+        final boolean decompressing = DecompressingRequestBody.isSupported(contentEncoding);
+        if (decompressing) {
+            entityStream = new DecompressingRequestBody(entityStream, contentEncoding, maxDecompressedRequestBodySize);
+        }
+        containerRequest.setEntityStream(entityStream);
+        final InputStream finalEntityStream = entityStream;
 
         // copy the incoming headers over...
         final MultivaluedMap<String, String> incomingHeaders = containerRequest.getHeaders();
@@ -337,30 +1335,132 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         if (securityContext instanceof HeaderAwareSecurityContext) {
             ((HeaderAwareSecurityContext) securityContext).setHeaders(containerRequest.getHeaders());
         }
-        for (Map.Entry<String, String> headerEntry : httpRequest.headers()) {
-            incomingHeaders.add(headerEntry.getKey(), headerEntry.getValue());
+        final HttpHeaders httpHeaders = httpRequest.headers();
+        for (String name : httpHeaders.names()) {
+            // names() is case sensitive, but getAll() already returned the values of all spellings of a name
+            if (!incomingHeaders.containsKey(name)) {
+                incomingHeaders.put(name, httpHeaders.getAll(name));
+            }
+        }
+        if (decompressing) {
+            // the application sees the decompressed body
+            incomingHeaders.remove(HttpHeaders.Names.CONTENT_ENCODING);
+            incomingHeaders.remove(HttpHeaders.Names.CONTENT_LENGTH);
         }
 
-        // for HTTP 1.0 we always close the connection after the request, for 1.1 we look at the Connection header
-        boolean closeConnection = protocolVersion == HttpVersion.HTTP_1_0;
-        final String connectionHeader = HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.CONNECTION);
-        if (connectionHeader != null && connectionHeader.equals("close")) {
-            closeConnection = true;
+        final long sequence = channelState.getResponseSequencer().begin(maxPipelinedRequests, maxHeldBackResponseBytes);
+        final String acceptedEncoding = responseCompression == null
+                ? null
+                : ResponseCompression.negotiate(HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.ACCEPT_ENCODING));
+        final NettyResponseWriter responseWriter = new NettyResponseWriter(protocolVersion,
+                closeConnection, channelState, sequence, acceptedEncoding);
+        if (cacheKey != null) {
+            responseWriter.cacheAs(cacheKey);
+        }
+        if (rangeHeader != null) {
+            responseWriter.rangeRequested(rangeHeader, HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.IF_RANGE));
         }
-        containerRequest.setWriter(new NettyResponseWriter(protocolVersion,
-                closeConnection, e.getChannel()));
+        containerRequest.setWriter(responseWriter);
+        metrics.requestStarted();
 
         // see http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html, sec 14.18 Date.
-        final Date responseDate = new Date();
-        containerRequest.getHeaders().add(HttpHeaders.Names.DATE, HttpDateFormat.getPreferredDateFormat().format(responseDate));
-        appHandler.handle(containerRequest);
+        containerRequest.getHeaders().add(HttpHeaders.Names.DATE, dateHeaderClock.get());
 
-        // *sigh*, netty has a list of Map.Entry and jersey wants a map. :/
-        final MultivaluedMap<String, String> headers = containerRequest.getHeaders();
-        for (Map.Entry<String, String> header : httpRequest.headers()) {
-            headers.add(header.getKey(), header.getValue());
+        final HttpRequest finalAssembledRequest = assembledRequest;
+        final long dispatchedAt = System.nanoTime();
+        final boolean dispatched = requestDispatcher.dispatch(channelState, new Runnable() {
+            @Override
+            public void run() {
+                final long handledAt = System.nanoTime();
+                responseWriter.metrics.requestDispatched(handledAt - dispatchedAt);
+                try {
+                    appHandler.handle(containerRequest);
+                } finally {
+                    responseWriter.metrics.requestHandled(System.nanoTime() - handledAt);
+                    releaseAssembled(finalAssembledRequest);
+                    if (finalEntityStream instanceof DecompressingRequestBody) {
+                        // releases the inflater, and closes a streamed body below it like in the case below
+                        ((DecompressingRequestBody) finalEntityStream).close();
+                    } else if (finalEntityStream instanceof StreamingRequestBody) {
+                        // skip whatever the application did not read, so the connection can be used for the next request
+                        ((StreamingRequestBody) finalEntityStream).close();
+                    }
+                }
+            }
+        });
+        if (!dispatched) {
+            releaseAssembled(assembledRequest);
+            serviceUnavailable(channelState, sequence, protocolVersion);
+            responseWriter.completed(HttpResponseStatus.SERVICE_UNAVAILABLE.getCode());
+        }
+    }
+
+    /**
+     * @return the name of the resource method that handled the request, like {@code GET org.example.Users#list}
+     */
+    private String resourceMethodName(ContainerResponse responseContext) {
+        final ResourceMethod resourceMethod = responseContext.getRequestContext().getUriInfo().getMatchedResourceMethod();
+        if (resourceMethod == null) {
+            return null;
+        }
+        String name = resourceMethodNames.get(resourceMethod);
+        if (name == null) {
+            final Invocable invocable = resourceMethod.getInvocable();
+            name = resourceMethod.getHttpMethod() + " " + invocable.getHandler().getHandlerClass().getName()
+                    + "#" + invocable.getDefinitionMethod().getName();
+            resourceMethodNames.putIfAbsent(resourceMethod, name);
+        }
+        return name;
+    }
+
+    private void releaseAssembled(HttpRequest assembledRequest) {
+        if (assembledRequest != null) {
+            chunkedRequestAssembler.releaseAssembled(assembledRequest);
         }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final ChannelState channelState = ChannelState.get(ctx);
+        chunkedRequestAssembler.release(channelState);
+        channelState.getResponseSequencer().abort(new ClosedChannelException());
+        channelState.writabilityChanged();
+        for (NettyResponseWriter writer : channelState.getSuspendedWriters()) {
+            writer.cancelSuspension();
+        }
+        super.channelClosed(ctx, e);
+    }
 
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final ChannelConfig config = ctx.getChannel().getConfig();
+        if (config instanceof NioChannelConfig && (writeBufferHighWaterMark > 0 || writeBufferLowWaterMark > 0)) {
+            setWriteBufferWaterMarks((NioChannelConfig) config, writeBufferLowWaterMark, writeBufferHighWaterMark);
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    /**
+     * Sets the water marks of a channel, those {@code <= 0} are left as they are.
+     */
+    static void setWriteBufferWaterMarks(NioChannelConfig config, int lowWaterMark, int highWaterMark) {
+        final int high = highWaterMark > 0 ? highWaterMark : config.getWriteBufferHighWaterMark();
+        final int low = lowWaterMark > 0 ? lowWaterMark : config.getWriteBufferLowWaterMark();
+        // netty checks each mark against the current value of the other one
+        if (low > config.getWriteBufferHighWaterMark()) {
+            config.setWriteBufferHighWaterMark(high);
+            config.setWriteBufferLowWaterMark(low);
+        } else {
+            config.setWriteBufferLowWaterMark(low);
+            config.setWriteBufferHighWaterMark(high);
+        }
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // the channel might have become writable again, see ResponseWriteThrottle
+        ChannelState.get(ctx).writabilityChanged();
+        super.channelInterestChanged(ctx, e);
     }
 
     /* horrible, looks like rubby */
@@ -368,20 +1468,29 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         if (authorizationHeader == null) {
             return null;
         }
+        // same results as splitting at the separators, which drops trailing empty parts, but without the regexes
+        final String header = trimTrailing(authorizationHeader, ' ');
+        final int space = header.indexOf(' ');
+        if (space < 0 || header.indexOf(' ', space + 1) >= 0) {
+            return null;
+        }
         String[] schemeUserPass = new String[3];
-        String credentials;
-        final String[] headerParts = authorizationHeader.split(" ");
-        if (headerParts != null && headerParts.length == 2) {
-            schemeUserPass[0] = headerParts[0].equalsIgnoreCase("basic") ? SecurityContext.BASIC_AUTH : null;
-            credentials = Base64.decodeAsString(headerParts[1]);
-            final String[] userPass = credentials.split(":");
-            if (userPass != null && userPass.length == 2) {
-                schemeUserPass[1] = userPass[0].replaceAll("%40", "@");
-                schemeUserPass[2] = userPass[1];
-            }
-            return schemeUserPass;
+        schemeUserPass[0] = space == 5 && header.regionMatches(true, 0, "basic", 0, 5) ? SecurityContext.BASIC_AUTH : null;
+        final String credentials = trimTrailing(Base64.decodeAsString(header.substring(space + 1)), ':');
+        final int colon = credentials.indexOf(':');
+        if (colon >= 0 && credentials.indexOf(':', colon + 1) < 0) {
+            schemeUserPass[1] = credentials.substring(0, colon).replace("%40", "@");
+            schemeUserPass[2] = credentials.substring(colon + 1);
+        }
+        return schemeUserPass;
+    }
+
+    private static String trimTrailing(String s, char c) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == c) {
+            end--;
         }
-        return null;
+        return s.substring(0, end);
     }
 
     @Override
@@ -391,8 +1500,16 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
             log.debug("Not writing any response, channel is already closed.", e.getCause());
             return;
         }
+        final ChannelState channelState = ChannelState.get(ctx);
+        chunkedRequestAssembler.release(channelState);
+        if (e.getCause() instanceof TooLongFrameException) {
+            // raised by the request decoder, the client is to blame
+            log.debug("Client sent a request exceeding the decoder limits. Closing connection.", e.getCause());
+            requestTooLong(ctx, (TooLongFrameException) e.getCause());
+            return;
+        }
         log.error("Uncaught exception during jersey resource handling", e.getCause());
-        final HttpRequest request = (HttpRequest) ctx.getAttachment();
+        final HttpRequest request = channelState.getRequest();
         final HttpVersion protocolVersion;
         if (request != null && request.getProtocolVersion() != null) {
             protocolVersion = request.getProtocolVersion();
@@ -405,7 +1522,7 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         new ChannelBufferOutputStream(buffer).writeBytes(e.toString());
         response.setContent(buffer);
 
-        final ChannelFuture channelFuture = channel.write(response);
+        final ChannelFuture channelFuture = writeInSequence(channelState, response);
 
         if ((protocolVersion == HttpVersion.HTTP_1_0)
                 || request == null
@@ -428,11 +1545,92 @@ public class NettyContainer extends SimpleChannelUpstreamHandler implements Cont
         new ChannelBufferOutputStream(buffer).writeBytes("Your client has sent a malformed or illegal request.\n");
         response.setContent(buffer);
 
-        final ChannelFuture channelFuture = channel.write(response);
+        final ChannelFuture channelFuture = writeInSequence(ChannelState.get(ctx), response);
 
         channelFuture.addListener(ChannelFutureListener.CLOSE);
     }
 
+    private void requestEntityTooLarge(ChannelHandlerContext ctx) throws IOException {
+        final Channel channel = ctx.getChannel();
+        // don't bother reading the rest of the request
+        channel.setReadable(false);
+
+        final DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_0, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        response.headers().add(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+        response.headers().add(HttpHeaders.Names.CONNECTION, "close");
+        final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        new ChannelBufferOutputStream(buffer).writeBytes("The request body exceeds the maximum of " + maxRequestBodySize + " bytes.\n");
+        response.setContent(buffer);
+        HttpHeaders.setContentLength(response, buffer.readableBytes());
+
+        writeInSequence(ChannelState.get(ctx), response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void requestTooLong(ChannelHandlerContext ctx, TooLongFrameException tooLong) throws IOException {
+        final Channel channel = ctx.getChannel();
+        // the decoder can't make sense of the rest of the connection anyway
+        channel.setReadable(false);
+
+        final String message = String.valueOf(tooLong.getMessage());
+        final HttpResponseStatus status;
+        if (message.startsWith("HTTP header")) {
+            status = HttpResponseStatus.REQUEST_HEADER_FIELDS_TOO_LARGE;
+        } else if (message.startsWith("An HTTP line")) {
+            status = HttpResponseStatus.REQUEST_URI_TOO_LONG;
+        } else {
+            status = HttpResponseStatus.BAD_REQUEST;
+        }
+        final DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_0, status);
+        response.headers().add(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+        response.headers().add(HttpHeaders.Names.CONNECTION, "close");
+        final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        new ChannelBufferOutputStream(buffer).writeBytes("The request line or headers exceed the limits of the server.\n");
+        response.setContent(buffer);
+        HttpHeaders.setContentLength(response, buffer.readableBytes());
+
+        writeInSequence(ChannelState.get(ctx), response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Writes a response the container sends by itself after the responses to all requests received before.
+     */
+    private ChannelFuture writeInSequence(ChannelState channelState, HttpResponse response) {
+        final ResponseSequencer responseSequencer = channelState.getResponseSequencer();
+        final long sequence = responseSequencer.begin(maxPipelinedRequests, maxHeldBackResponseBytes);
+        final ChannelFuture written = responseSequencer.write(sequence, response);
+        responseSequencer.complete(sequence);
+        return written;
+    }
+
+    private void sendCachedResponse(ChannelState channelState, HttpResponse response, boolean closeConnection, long startedAt) {
+        final ContainerMetrics metrics = this.metrics;
+        metrics.requestStarted();
+        response.headers().set(HttpHeaders.Names.DATE, dateHeaderClock.get());
+        metrics.responseBodyWritten(response.getContent().readableBytes(), false);
+        writeInSequence(channelState, response)
+                .addListener(closeConnection ? ChannelFutureListener.CLOSE : ChannelFutureListener.CLOSE_ON_FAILURE);
+        metrics.requestCompleted(null, response.getStatus().getCode(), System.nanoTime() - startedAt);
+    }
+
+    private void serviceUnavailable(ChannelState channelState, long sequence, HttpVersion protocolVersion) throws IOException {
+        final ResponseSequencer responseSequencer = channelState.getResponseSequencer();
+        if (!channelState.getChannel().isOpen()) {
+            responseSequencer.complete(sequence);
+            return;
+        }
+
+        final DefaultHttpResponse response = new DefaultHttpResponse(protocolVersion, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        response.headers().add(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+        response.headers().add(HttpHeaders.Names.CONNECTION, "close");
+        final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        new ChannelBufferOutputStream(buffer).writeBytes("The server is too busy to handle your request, please try again later.\n");
+        response.setContent(buffer);
+        HttpHeaders.setContentLength(response, buffer.readableBytes());
+
+        responseSequencer.write(sequence, response).addListener(ChannelFutureListener.CLOSE);
+        responseSequencer.complete(sequence);
+    }
+
     /**
      * Get the Jersey server-side application handler associated with the container.
      *
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.ReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioChannelConfig;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link NettyContainer} over HTTP with Netty's NIO transport.
+ *
+ * The server owns the pipeline of every connection: an {@link HttpRequestDecoder} with the configured limits, an
+ * {@link HttpResponseEncoder}, a {@link ChunkedWriteHandler} and the container. It does not shut down the container
+ * when it is stopped, because the container may be served again.
+ *
+ * <pre>
+ * final NettyServer server = NettyServer.builder(container).highConcurrencyApi().build();
+ * server.start(new InetSocketAddress(12900));
+ * </pre>
+ *
+ * Options not set on the {@link Builder} keep the defaults of Netty and the operating system.
+ */
+public class NettyServer {
+    private final NettyContainer container;
+    private final Builder options;
+    private final ChannelGroup channels = new DefaultChannelGroup("jersey-netty");
+    private final SimpleChannelUpstreamHandler channelOpener = new SimpleChannelUpstreamHandler() {
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            // closed channels are removed from the group by themselves
+            channels.add(ctx.getChannel());
+            final ChannelConfig config = ctx.getChannel().getConfig();
+            if (config instanceof NioChannelConfig) {
+                // not set as bootstrap options, those are applied in no particular order and netty checks each mark
+                // against the current value of the other one. the container overrides them if its properties are set.
+                NettyContainer.setWriteBufferWaterMarks((NioChannelConfig) config,
+                                                        options.writeBufferLowWaterMark,
+                                                        options.writeBufferHighWaterMark);
+            }
+            super.channelOpen(ctx, e);
+        }
+    };
+    private ServerBootstrap bootstrap;
+    private Channel serverChannel;
+
+    private NettyServer(NettyContainer container, Builder options) {
+        this.container = container;
+        this.options = options;
+    }
+
+    public static Builder builder(NettyContainer container) {
+        if (container == null) {
+            throw new NullPointerException("container");
+        }
+        return new Builder(container);
+    }
+
+    /**
+     * Binds the server to the given address.
+     *
+     * @return the address the server is bound to, which has the actual port if {@code 0} was given
+     * @throws IllegalStateException if the server has been started already
+     * @throws org.jboss.netty.channel.ChannelException if the address cannot be bound
+     */
+    public synchronized SocketAddress start(SocketAddress address) {
+        if (bootstrap != null) {
+            throw new IllegalStateException("Server has been started already");
+        }
+        final ExecutorService bossExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("jersey-netty-boss-%d").build());
+        final ExecutorService workerExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("jersey-netty-worker-%d").build());
+        final int workerThreads = options.workerThreads > 0
+                ? options.workerThreads
+                : 2 * Runtime.getRuntime().availableProcessors();
+        final ServerBootstrap bootstrap = new ServerBootstrap(
+                new NioServerSocketChannelFactory(bossExecutor, options.bossThreads, workerExecutor, workerThreads));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("channels", channelOpener);
+                pipeline.addLast("decoder", new HttpRequestDecoder(options.maxInitialLineLength,
+                                                                   options.maxHeaderSize,
+                                                                   options.maxChunkSize));
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("chunks", new ChunkedWriteHandler());
+                pipeline.addLast("jerseyHandler", container);
+                return pipeline;
+            }
+        });
+        setOptions(bootstrap);
+
+        final Channel serverChannel;
+        try {
+            serverChannel = bootstrap.bind(address);
+        } catch (RuntimeException e) {
+            // e.g. the port is in use, the server may be started again
+            bootstrap.releaseExternalResources();
+            throw e;
+        }
+        channels.add(serverChannel);
+        this.bootstrap = bootstrap;
+        this.serverChannel = serverChannel;
+        return serverChannel.getLocalAddress();
+    }
+
+    private void setOptions(ServerBootstrap bootstrap) {
+        bootstrap.setOption("reuseAddress", options.reuseAddress);
+        if (options.backlog > 0) {
+            bootstrap.setOption("backlog", options.backlog);
+        }
+        bootstrap.setOption("child.tcpNoDelay", options.tcpNoDelay);
+        bootstrap.setOption("child.keepAlive", options.keepAlive);
+        if (options.receiveBufferSize > 0) {
+            bootstrap.setOption("child.receiveBufferSize", options.receiveBufferSize);
+        }
+        if (options.sendBufferSize > 0) {
+            bootstrap.setOption("child.sendBufferSize", options.sendBufferSize);
+        }
+        if (options.receiveBufferSizePredictorFactory != null) {
+            bootstrap.setOption("child.receiveBufferSizePredictorFactory", options.receiveBufferSizePredictorFactory);
+        }
+    }
+
+    /**
+     * Closes the server channel and all connections, and releases the I/O threads. Responses still being written are
+     * cut off.
+     */
+    public synchronized void stop() {
+        if (bootstrap == null) {
+            return;
+        }
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        bootstrap = null;
+        serverChannel = null;
+    }
+
+    /**
+     * @return the address the server is bound to, {@code null} if it isn't running
+     */
+    public synchronized SocketAddress getLocalAddress() {
+        return serverChannel == null ? null : serverChannel.getLocalAddress();
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnections() {
+        // the server channel is in the group as well
+        return Math.max(0, channels.size() - 1);
+    }
+
+    public NettyContainer getContainer() {
+        return container;
+    }
+
+    /**
+     * Options of a {@link NettyServer}. Sizes of {@code 0} leave the defaults of Netty or the operating system.
+     */
+    public static class Builder {
+        private final NettyContainer container;
+        private int bossThreads = 1;
+        private int workerThreads;
+        private boolean tcpNoDelay = true;
+        private boolean keepAlive = true;
+        private boolean reuseAddress = true;
+        private int backlog;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private int writeBufferHighWaterMark;
+        private int writeBufferLowWaterMark;
+        private int maxInitialLineLength = 4096;
+        private int maxHeaderSize = 8192;
+        private int maxChunkSize = 8192;
+        private ReceiveBufferSizePredictorFactory receiveBufferSizePredictorFactory;
+
+        private Builder(NettyContainer container) {
+            this.container = container;
+        }
+
+        /**
+         * Sets the options for serving many concurrent clients of an API with mostly small requests and responses:
+         * <ul>
+         * <li>a backlog of 1024 connections, so bursts of new connections aren't refused,</li>
+         * <li>receive buffers that start at 1 KB and adapt between 256 bytes and 64 KB to what is actually read,
+         * instead of allocating 64 KB for every read of a keep-alive connection,</li>
+         * <li>write water marks of 32 and 64 KB, so slow clients are throttled before they hold on to much memory,
+         * see {@link ResponseWriteThrottle},</li>
+         * <li>decoder chunks of 16 KB, so larger request bodies arrive in fewer pieces.</li>
+         * </ul>
+         * Nagle's algorithm is disabled and keep-alive enabled, as by default. Options set after this override it.
+         */
+        public Builder highConcurrencyApi() {
+            return backlog(1024)
+                    .tcpNoDelay(true)
+                    .keepAlive(true)
+                    .adaptiveReceiveBufferSize(256, 1024, 64 * 1024)
+                    .writeBufferWaterMarks(32 * 1024, 64 * 1024)
+                    .decoderLimits(4096, 8192, 16 * 1024);
+        }
+
+        /**
+         * @param bossThreads the number of threads accepting connections, {@code 1} by default
+         */
+        public Builder bossThreads(int bossThreads) {
+            if (bossThreads < 1) {
+                throw new IllegalArgumentException("bossThreads must be at least 1: " + bossThreads);
+            }
+            this.bossThreads = bossThreads;
+            return this;
+        }
+
+        /**
+         * @param workerThreads the number of I/O threads serving connections, twice the number of processors by
+         *                      default
+         */
+        public Builder workerThreads(int workerThreads) {
+            if (workerThreads < 1) {
+                throw new IllegalArgumentException("workerThreads must be at least 1: " + workerThreads);
+            }
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * @param tcpNoDelay whether to disable Nagle's algorithm, which delays small writes like response headers,
+         *                   {@code true} by default
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * @param keepAlive whether to detect dead peers with TCP keep-alive, {@code true} by default
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * @param reuseAddress whether the address can be bound again right after a restart, {@code true} by default
+         */
+        public Builder reuseAddress(boolean reuseAddress) {
+            this.reuseAddress = reuseAddress;
+            return this;
+        }
+
+        /**
+         * @param backlog the number of connections waiting to be accepted, {@code SO_BACKLOG}
+         */
+        public Builder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * @param receiveBufferSize the size of the socket receive buffers of connections, {@code SO_RCVBUF}
+         */
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * @param sendBufferSize the size of the socket send buffers of connections, {@code SO_SNDBUF}
+         */
+        public Builder sendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * Sets the amounts of queued outbound bytes at which a connection becomes unwritable and writable again. The
+         * {@link NettyContainer#PROPERTY_WRITE_BUFFER_LOW_WATER_MARK container properties} take precedence.
+         */
+        public Builder writeBufferWaterMarks(int low, int high) {
+            if (low > high) {
+                throw new IllegalArgumentException("Low water mark " + low + " is above high water mark " + high);
+            }
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = high;
+            return this;
+        }
+
+        /**
+         * Sets the limits of the request decoder. Requests exceeding the first two are answered with
+         * {@code 414 Request-URI Too Long} or {@code 431 Request Header Fields Too Large} and their connection is
+         * closed.
+         *
+         * @param maxInitialLineLength the maximum length of the request line, {@code 4096} by default
+         * @param maxHeaderSize        the maximum size of all headers, {@code 8192} by default
+         * @param maxChunkSize         the size of the pieces larger bodies are split into, {@code 8192} by default
+         */
+        public Builder decoderLimits(int maxInitialLineLength, int maxHeaderSize, int maxChunkSize) {
+            this.maxInitialLineLength = maxInitialLineLength;
+            this.maxHeaderSize = maxHeaderSize;
+            this.maxChunkSize = maxChunkSize;
+            return this;
+        }
+
+        /**
+         * Reads from connections into buffers whose size adapts to the amount of data read before.
+         */
+        public Builder adaptiveReceiveBufferSize(int minimum, int initial, int maximum) {
+            return receiveBufferSizePredictorFactory(
+                    new AdaptiveReceiveBufferSizePredictorFactory(minimum, initial, maximum));
+        }
+
+        /**
+         * Reads from connections into buffers of a fixed size.
+         */
+        public Builder fixedReceiveBufferSize(int size) {
+            return receiveBufferSizePredictorFactory(new FixedReceiveBufferSizePredictorFactory(size));
+        }
+
+        /**
+         * @param factory decides how large the buffers are that data is read from connections into, Netty's default
+         *                starts at 1 KB and adapts between 64 bytes and 64 KB
+         */
+        public Builder receiveBufferSizePredictorFactory(ReceiveBufferSizePredictorFactory factory) {
+            this.receiveBufferSizePredictorFactory = factory;
+            return this;
+        }
+
+        /**
+         * @return a server with the options set so far, later changes to the builder don't affect it
+         */
+        public NettyServer build() {
+            final Builder options = new Builder(container);
+            options.bossThreads = bossThreads;
+            options.workerThreads = workerThreads;
+            options.tcpNoDelay = tcpNoDelay;
+            options.keepAlive = keepAlive;
+            options.reuseAddress = reuseAddress;
+            options.backlog = backlog;
+            options.receiveBufferSize = receiveBufferSize;
+            options.sendBufferSize = sendBufferSize;
+            options.writeBufferHighWaterMark = writeBufferHighWaterMark;
+            options.writeBufferLowWaterMark = writeBufferLowWaterMark;
+            options.maxInitialLineLength = maxInitialLineLength;
+            options.maxHeaderSize = maxHeaderSize;
+            options.maxChunkSize = maxChunkSize;
+            options.receiveBufferSizePredictorFactory = receiveBufferSizePredictorFactory;
+            return new NettyServer(container, options);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.spi.ContainerResponseWriter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Takes entities the container can write without a message body writer out of Jersey's hands: strings, byte arrays
+ * and channel buffers are encoded once and passed to the {@link NettyContainer.NettyResponseWriter}, which sends
+ * them with an exact {@code Content-Length}. Files are passed on as {@link FileEntity FileEntities}, to be sent
+ * without copying them through the heap. Jersey then finishes the response as if it had no entity.
+ *
+ * Runs after all other response filters, so that it sees the final entity. It is disabled by the container when the
+ * application registers writer interceptors, because those would be skipped.
+ */
+@Priority(Integer.MIN_VALUE)
+final class PreEncodedEntityFilter implements ContainerResponseFilter {
+    private static final Logger log = LoggerFactory.getLogger(PreEncodedEntityFilter.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private volatile boolean enabled = false;
+    private volatile boolean sendingFiles = false;
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setSendingFiles(boolean sendingFiles) {
+        this.sendingFiles = sendingFiles;
+    }
+
+    boolean isSendingFiles() {
+        return sendingFiles;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        if ((!enabled && !sendingFiles) || !responseContext.hasEntity() || !(requestContext instanceof ContainerRequest)) {
+            return;
+        }
+        // jersey knows what to send for HEAD requests, and compressed entities have to go through the interceptors
+        if (HttpMethod.HEAD.equals(requestContext.getMethod())
+                || responseContext.getHeaders().containsKey(HttpHeaders.Names.CONTENT_ENCODING)) {
+            return;
+        }
+        final ContainerResponseWriter writer = ((ContainerRequest) requestContext).getResponseWriter();
+        if (!(writer instanceof NettyContainer.NettyResponseWriter)) {
+            return;
+        }
+
+        final NettyContainer.NettyResponseWriter nettyWriter = (NettyContainer.NettyResponseWriter) writer;
+        if (sendingFiles && nettyWriter.canSendFiles()) {
+            final FileEntity file;
+            try {
+                file = FileEntity.of(responseContext.getEntity());
+            } catch (IOException e) {
+                // jersey won't be able to read it either, and answers with an error
+                log.debug("Could not open file of response entity", e);
+                return;
+            }
+            if (file != null) {
+                nettyWriter.setFileEntity(file);
+                responseContext.setEntity(null);
+                return;
+            }
+        }
+        if (!enabled) {
+            return;
+        }
+
+        final ChannelBuffer content = encode(responseContext.getEntity(), responseContext.getMediaType());
+        if (content == null) {
+            return;
+        }
+        nettyWriter.setEntityContent(content);
+        responseContext.setEntity(null);
+    }
+
+    private static ChannelBuffer encode(Object entity, MediaType mediaType) {
+        if (entity instanceof String) {
+            return ChannelBuffers.wrappedBuffer(((String) entity).getBytes(charset(mediaType)));
+        } else if (entity instanceof byte[]) {
+            return ChannelBuffers.wrappedBuffer((byte[]) entity);
+        } else if (entity instanceof ChannelBuffer) {
+            return ((ChannelBuffer) entity).slice();
+        }
+        return null;
+    }
+
+    /**
+     * Same as Jersey's string provider: the charset of the media type, UTF-8 if there is none.
+     */
+    private static Charset charset(MediaType mediaType) {
+        final String name = mediaType == null ? null : mediaType.getParameters().get(MediaType.CHARSET_PARAMETER);
+        return name == null ? UTF_8 : Charset.forName(name);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide limit on the memory held by request bodies the container buffers, shared by all connections.
+ *
+ * Data that has been read from a connection already is always accepted, even if it exceeds the budget. The
+ * connection is simply not read from anymore until enough memory has been released by other requests, so clients
+ * experience a slower upload instead of an error.
+ */
+public class RequestBodyBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong readSuspensionCount = new AtomicLong();
+    private final Queue<ChannelState> suspendedChannels = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param limit the number of bytes all buffered request bodies may use, {@code <= 0} for no limit
+     */
+    public RequestBodyBudget(long limit) {
+        this.limit = limit <= 0 ? Long.MAX_VALUE : limit;
+    }
+
+    /**
+     * Accounts for bytes received on the given connection, suspending reads from it if the budget is exhausted.
+     */
+    void reserve(ChannelState channelState, long bytes) {
+        if (used.addAndGet(bytes) > limit && !channelState.isReadSuspended(ChannelState.SUSPENDED_BY_MEMORY_BUDGET)) {
+            channelState.suspendReads(ChannelState.SUSPENDED_BY_MEMORY_BUDGET);
+            suspendedChannels.add(channelState);
+            readSuspensionCount.incrementAndGet();
+            // memory might have been released while we were suspending the channel
+            resumeSuspendedChannels();
+        }
+    }
+
+    void release(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        used.addAndGet(-bytes);
+        resumeSuspendedChannels();
+    }
+
+    private void resumeSuspendedChannels() {
+        while (used.get() <= limit) {
+            final ChannelState channelState = suspendedChannels.poll();
+            if (channelState == null) {
+                return;
+            }
+            channelState.resumeReads(ChannelState.SUSPENDED_BY_MEMORY_BUDGET);
+        }
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of bytes currently held by buffered request bodies
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return how many times reading from a connection was suspended because the budget was exhausted
+     */
+    public long getReadSuspensionCount() {
+        return readSuspensionCount.get();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jboss.netty.channel.Channels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands fully received requests from the Netty I/O worker to the thread that runs the Jersey application.
+ *
+ * Apart from the {@link #direct() direct} dispatcher, which keeps the old behaviour of running Jersey on the I/O
+ * worker itself, the number of requests waiting for or being processed by the executor is bounded. Once
+ * {@code maxQueued} requests are pending, the connection that submitted the last one stops being read from until
+ * the backlog drained again, pushing back on the clients via TCP instead of buffering ever more requests in memory.
+ */
+public class RequestDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final int maxQueued;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong readSuspensionCount = new AtomicLong();
+    private final Queue<ChannelState> suspendedChannels = new ConcurrentLinkedQueue<>();
+
+    RequestDispatcher(Executor executor, boolean ownsExecutor, int maxQueued) {
+        if (executor != null && maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued must be at least 1, but was " + maxQueued);
+        }
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Runs every request on the Netty I/O worker that received it.
+     */
+    public static RequestDispatcher direct() {
+        return new RequestDispatcher(null, false, 0);
+    }
+
+    /**
+     * Runs requests on a fixed number of threads owned by the dispatcher.
+     */
+    public static RequestDispatcher fixed(int threads, int maxQueued) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("jersey-netty-request-%d")
+                        .setDaemon(true)
+                        .build());
+        return new RequestDispatcher(executor, true, maxQueued);
+    }
+
+    /**
+     * Runs requests on a work-stealing {@link ForkJoinPool} of the given parallelism owned by the dispatcher.
+     */
+    public static RequestDispatcher workStealing(int parallelism, int maxQueued) {
+        final ForkJoinPool executor = new ForkJoinPool(parallelism,
+                                                       ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                                                       null,
+                                                       true);
+        return new RequestDispatcher(executor, true, maxQueued);
+    }
+
+    /**
+     * Runs requests on an executor supplied (and shut down) by the caller.
+     */
+    public static RequestDispatcher forExecutor(Executor executor, int maxQueued) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        return new RequestDispatcher(executor, false, maxQueued);
+    }
+
+    public boolean isDirect() {
+        return executor == null;
+    }
+
+    /**
+     * Runs the task for a request received on the given connection.
+     *
+     * @return {@code false} if the executor rejected the task, in which case the caller has to answer the request
+     */
+    boolean dispatch(final ChannelState state, final Runnable task) {
+        dispatchedCount.incrementAndGet();
+        if (executor == null) {
+            task.run();
+            return true;
+        }
+
+        final int depth = queueDepth.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        Channels.fireExceptionCaughtLater(state.getChannel(), t);
+                    } finally {
+                        queueDepth.decrementAndGet();
+                        resumeSuspendedChannels();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            log.debug("Request executor rejected request from {}", state.getChannel().getRemoteAddress());
+            return false;
+        }
+
+        if (depth >= maxQueued && !state.isReadSuspended(ChannelState.SUSPENDED_BY_DISPATCHER)) {
+            log.trace("{} requests pending, suspending reads from {}", depth, state.getChannel().getRemoteAddress());
+            state.suspendReads(ChannelState.SUSPENDED_BY_DISPATCHER);
+            suspendedChannels.add(state);
+            readSuspensionCount.incrementAndGet();
+            // the backlog might have drained while we were suspending the channel
+            resumeSuspendedChannels();
+        }
+        return true;
+    }
+
+    private void resumeSuspendedChannels() {
+        while (queueDepth.get() < maxQueued) {
+            final ChannelState state = suspendedChannels.poll();
+            if (state == null) {
+                return;
+            }
+            state.resumeReads(ChannelState.SUSPENDED_BY_DISPATCHER);
+        }
+    }
+
+    /**
+     * Shuts down the executor if it was created by this dispatcher.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * @return the number of requests currently waiting for or being processed by the executor
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @return the total number of requests handed to this dispatcher
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * @return the total number of requests the executor refused to accept
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return how many times reading from a connection was suspended because the queue was full
+     */
+    public long getReadSuspensionCount() {
+        return readSuspensionCount.get();
+    }
+}
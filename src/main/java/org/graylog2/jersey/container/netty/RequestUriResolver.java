@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves the request URIs sent by clients against the base URI of the container, like {@link URI#resolve(String)}.
+ *
+ * Almost all clients send an absolute path with an optional query, whose resolved URI is just the scheme and
+ * authority of the base URI followed by that path. Those are checked against a table of the characters allowed in
+ * them and parsed once, everything else, like dot segments, fragments or absolute URIs, goes through
+ * {@link URI#resolve(String)}. Optionally the most recently resolved URIs are cached.
+ */
+final class RequestUriResolver {
+    private static final boolean[] PATH_AND_QUERY_CHARS = new boolean[128];
+
+    static {
+        final String allowed = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"
+                // unreserved, sub-delims and the other characters of paths and queries, RFC 3986
+                + "-._~!$&'()*+,;=:@/?%";
+        for (int i = 0; i < allowed.length(); i++) {
+            PATH_AND_QUERY_CHARS[allowed.charAt(i)] = true;
+        }
+    }
+
+    private final URI baseUri;
+    // scheme and authority of the base URI, null if the fast path cannot be used for it
+    private final String prefix;
+    // guarded by itself, null if not caching
+    private final Map<String, URI> cache;
+
+    /**
+     * @param cacheSize the number of resolved URIs to keep, {@code <= 0} to not cache any
+     */
+    RequestUriResolver(URI baseUri, final int cacheSize) {
+        this.baseUri = baseUri;
+        this.prefix = baseUri == null || baseUri.isOpaque() || baseUri.getRawAuthority() == null
+                ? null
+                : baseUri.getScheme() + "://" + baseUri.getRawAuthority();
+        this.cache = cacheSize <= 0 ? null : new LinkedHashMap<String, URI>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, URI> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request URI is invalid
+     */
+    URI resolve(String requestUri) {
+        if (cache == null) {
+            return doResolve(requestUri);
+        }
+        synchronized (cache) {
+            final URI cached = cache.get(requestUri);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final URI resolved = doResolve(requestUri);
+        synchronized (cache) {
+            cache.put(requestUri, resolved);
+        }
+        return resolved;
+    }
+
+    private URI doResolve(String requestUri) {
+        if (prefix != null && isPlainAbsolutePath(requestUri)) {
+            return URI.create(prefix + requestUri);
+        }
+        return baseUri.resolve(requestUri);
+    }
+
+    /**
+     * @return {@code true} if the URI is an absolute path with an optional query, without dot segments that would
+     *         have to be normalized
+     */
+    static boolean isPlainAbsolutePath(String requestUri) {
+        final int length = requestUri.length();
+        if (length == 0 || requestUri.charAt(0) != '/' || (length > 1 && requestUri.charAt(1) == '/')) {
+            return false;
+        }
+        boolean inPath = true;
+        for (int i = 0; i < length; i++) {
+            final char c = requestUri.charAt(i);
+            if (c >= PATH_AND_QUERY_CHARS.length || !PATH_AND_QUERY_CHARS[c]) {
+                return false;
+            }
+            if (c == '?') {
+                inPath = false;
+            } else if (inPath && c == '.' && requestUri.charAt(i - 1) == '/') {
+                // possibly "." or "..", leave that to URI#normalize
+                return false;
+            }
+        }
+        return true;
+    }
+}
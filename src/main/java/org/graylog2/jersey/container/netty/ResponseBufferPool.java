@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a limited number of equally sized buffers for the chunks of responses, so that serializing a response does
+ * not allocate a fresh buffer for every chunk.
+ *
+ * A buffer may only be returned once Netty has written it to the connection, i.e. when its write future succeeded.
+ * Buffers that are never returned, e.g. because the write failed, are simply left to the garbage collector.
+ */
+final class ResponseBufferPool {
+    static final int DEFAULT_MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ChannelBuffer> buffers = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() is not constant-time
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    ResponseBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return an empty buffer of {@link #getBufferSize()} bytes
+     */
+    ChannelBuffer acquire() {
+        final ChannelBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ChannelBuffers.buffer(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ChannelBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+
+    int getPooled() {
+        return pooled.get();
+    }
+}
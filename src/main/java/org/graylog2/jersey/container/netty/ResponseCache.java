@@ -0,0 +1,449 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of complete responses to {@code GET} requests, answering repeated requests without handing them to
+ * the Jersey application.
+ *
+ * Only responses the application marked as cacheable with a {@code Cache-Control} {@code max-age} or
+ * {@code s-maxage} are stored, for that many seconds, unless they are {@code private}, chunked, set cookies, or
+ * {@code Vary} by a request header not included in the key. Entries are keyed by the request URI, the values of the
+ * configured request headers and a SHA-256 hash of the {@code Authorization} header, if any. Requests are answered
+ * before any Jersey filter runs, so only a client sending the very same credentials gets a response cached for them,
+ * and requests with cookies are not cached at all unless {@code Cookie} is one of the key headers. Applications
+ * authenticating requests by other headers have to mark their responses {@code private} or add the headers to the
+ * key. The least recently used entries are evicted once the bodies of all entries would take more than the byte
+ * budget.
+ *
+ * Requests whose {@code If-None-Match} header matches the {@code ETag} of the cached response are answered with
+ * {@code 304 Not Modified}. Cached bodies are shared between all responses sending them, as read-only buffers.
+ * Requests with other methods than {@code GET} and {@code HEAD} drop the entries of their URI.
+ */
+public class ResponseCache {
+    // hop-by-hop and per-response headers, set again for each response sent from the cache
+    private static final Set<String> UNCACHED_HEADERS = lowerCase(
+            HttpHeaders.Names.CONNECTION, "Keep-Alive", HttpHeaders.Names.TRANSFER_ENCODING,
+            HttpHeaders.Names.DATE, HttpHeaders.Names.AGE);
+    // the headers of a 304 response, RFC 7232 section 4.1
+    private static final Set<String> NOT_MODIFIED_HEADERS = lowerCase(
+            HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Names.CONTENT_LOCATION, HttpHeaders.Names.ETAG,
+            HttpHeaders.Names.EXPIRES, HttpHeaders.Names.VARY);
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform has to support it
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    static final class Key {
+        private final String uri;
+        private final String[] headers;
+        private final byte[] credentials;
+        private final int hashCode;
+
+        private Key(String uri, String[] headers, byte[] credentials) {
+            this.uri = uri;
+            this.headers = headers;
+            this.credentials = credentials;
+            this.hashCode = 31 * (31 * uri.hashCode() + Arrays.hashCode(headers)) + Arrays.hashCode(credentials);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return hashCode == other.hashCode && uri.equals(other.uri) && Arrays.equals(headers, other.headers)
+                    && Arrays.equals(credentials, other.credentials);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+        private final HttpResponseStatus status;
+        private final List<Map.Entry<String, String>> headers;
+        private final ChannelBuffer content;
+        private final String etag;
+        private final long storedAt;
+        private final long expiresAt;
+        private final long size;
+
+        private Entry(HttpResponseStatus status, List<Map.Entry<String, String>> headers, ChannelBuffer content,
+                      String etag, long storedAt, long expiresAt) {
+            this.status = status;
+            this.headers = headers;
+            this.content = content;
+            this.etag = etag;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            long size = content.readableBytes();
+            for (Map.Entry<String, String> header : headers) {
+                size += header.getKey().length() + header.getValue().length();
+            }
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final String[] keyHeaders;
+    private final Set<String> keyHeaderNames;
+    private final boolean cookiesInKey;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // all guarded by entries
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes   the number of bytes the cached responses may take together. Responses larger than a quarter
+     *                   of it are not cached.
+     * @param keyHeaders comma separated names of the request headers whose values are part of the key
+     */
+    public ResponseCache(long maxBytes, String keyHeaders) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+        final List<String> names = new ArrayList<>();
+        if (keyHeaders != null) {
+            for (String name : keyHeaders.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        this.keyHeaders = names.toArray(new String[names.size()]);
+        this.keyHeaderNames = lowerCase(this.keyHeaders);
+        this.cookiesInKey = keyHeaderNames.contains(HttpHeaders.Names.COOKIE.toLowerCase(Locale.ENGLISH));
+    }
+
+    private static Set<String> lowerCase(String... names) {
+        final Set<String> lowerCase = new HashSet<>();
+        for (String name : names) {
+            lowerCase.add(name.toLowerCase(Locale.ENGLISH));
+        }
+        return Collections.unmodifiableSet(lowerCase);
+    }
+
+    /**
+     * @return the key of the response to the given request, {@code null} if it can't be cached
+     */
+    Key key(HttpRequest request) {
+        if (!HttpMethod.GET.equals(request.getMethod())
+                || (!cookiesInKey && request.headers().contains(HttpHeaders.Names.COOKIE))) {
+            // cookies may well identify a session
+            return null;
+        }
+        final String[] headers = new String[keyHeaders.length];
+        for (int i = 0; i < keyHeaders.length; i++) {
+            headers[i] = request.headers().get(keyHeaders[i]);
+        }
+        // the cached response is sent before the request is authenticated, so the claimed user name is no key
+        final String authorization = request.headers().get(HttpHeaders.Names.AUTHORIZATION);
+        return new Key(request.getUri(), headers, authorization == null ? null : hash(authorization));
+    }
+
+    private static byte[] hash(String authorizationHeader) {
+        // looking up the algorithm for each request is slow, digests are reset after each use
+        return DIGEST.get().digest(authorizationHeader.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the response to send for the request from the cache, {@code null} if there is none and the request has
+     *         to be handled by the application
+     */
+    HttpResponse get(Key key, HttpRequest request, HttpVersion protocolVersion) {
+        if (isNoCache(request.headers().get(HttpHeaders.Names.CACHE_CONTROL))) {
+            // the client wants a fresh response, which will replace the cached one
+            misses.incrementAndGet();
+            return null;
+        }
+        final long now = System.nanoTime();
+        final Entry entry;
+        synchronized (entries) {
+            final Entry cached = entries.get(key);
+            if (cached != null && cached.expiresAt - now <= 0) {
+                remove(key);
+                entry = null;
+            } else {
+                entry = cached;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        final boolean matches = entry.etag != null && matches(request.headers().get(HttpHeaders.Names.IF_NONE_MATCH), entry.etag);
+        final HttpResponse response = new DefaultHttpResponse(protocolVersion,
+                                                              matches ? HttpResponseStatus.NOT_MODIFIED : entry.status);
+        for (Map.Entry<String, String> header : entry.headers) {
+            if (!matches || NOT_MODIFIED_HEADERS.contains(header.getKey().toLowerCase(Locale.ENGLISH))) {
+                response.headers().add(header.getKey(), header.getValue());
+            }
+        }
+        response.headers().set(HttpHeaders.Names.AGE, TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt));
+        if (matches) {
+            notModified.incrementAndGet();
+        } else {
+            // every response gets its own reader index, the bytes are shared
+            response.setContent(entry.content.duplicate());
+        }
+        return response;
+    }
+
+    /**
+     * Caches the complete response to the request with the given key, if the application allows it.
+     */
+    void put(Key key, HttpResponse response) {
+        if (response.isChunked() || !HttpResponseStatus.OK.equals(response.getStatus())
+                || response.headers().contains(HttpHeaders.Names.SET_COOKIE)
+                || !isVaryCovered(response.headers().getAll(HttpHeaders.Names.VARY))) {
+            return;
+        }
+        final long maxAge = maxAge(response.headers().getAll(HttpHeaders.Names.CACHE_CONTROL));
+        if (maxAge <= 0) {
+            return;
+        }
+        final List<Map.Entry<String, String>> headers = new ArrayList<>();
+        for (Map.Entry<String, String> header : response.headers()) {
+            if (!UNCACHED_HEADERS.contains(header.getKey().toLowerCase(Locale.ENGLISH))) {
+                headers.add(new AbstractMap.SimpleImmutableEntry<>(header.getKey(), header.getValue()));
+            }
+        }
+        final ChannelBuffer content = response.getContent();
+        final long now = System.nanoTime();
+        final Entry entry = new Entry(response.getStatus(), headers,
+                                      ChannelBuffers.unmodifiableBuffer(content.slice()),
+                                      response.headers().get(HttpHeaders.Names.ETAG),
+                                      now, now + TimeUnit.SECONDS.toNanos(maxAge));
+        if (entry.size > maxEntryBytes) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.size;
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // must hold entries
+    private void remove(Key key) {
+        final Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * Forgets the responses to all request URIs with the path of the given one, whatever their query, of all users,
+     * e.g. because it has been changed by a request with another method.
+     */
+    public void invalidate(String uri) {
+        final String path = path(uri);
+        synchronized (entries) {
+            final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Key, Entry> entry = iterator.next();
+                if (path(entry.getKey().uri).equals(path)) {
+                    bytes -= entry.getValue().size;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static String path(String uri) {
+        final int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    private boolean isVaryCovered(List<String> varyHeaders) {
+        for (String vary : varyHeaders) {
+            for (String name : vary.split(",")) {
+                if (!keyHeaderNames.contains(name.trim().toLowerCase(Locale.ENGLISH))) {
+                    // including Vary: *
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of seconds the response may be cached for, {@code 0} if it must not be cached
+     */
+    static long maxAge(List<String> cacheControls) {
+        long maxAge = 0;
+        long sharedMaxAge = -1;
+        for (String cacheControl : cacheControls) {
+            for (String directive : cacheControl.split(",")) {
+                final String trimmed = directive.trim().toLowerCase(Locale.ENGLISH);
+                // private responses are meant for a single user, who can't be told apart before authentication
+                if (trimmed.equals("no-store") || trimmed.startsWith("no-cache") || trimmed.startsWith("private")) {
+                    return 0;
+                } else if (trimmed.startsWith("max-age=")) {
+                    maxAge = seconds(trimmed.substring("max-age=".length()));
+                } else if (trimmed.startsWith("s-maxage=")) {
+                    sharedMaxAge = seconds(trimmed.substring("s-maxage=".length()));
+                }
+            }
+        }
+        return sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+    }
+
+    private static long seconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isNoCache(String cacheControl) {
+        return cacheControl != null && cacheControl.toLowerCase(Locale.ENGLISH).contains("no-cache");
+    }
+
+    /**
+     * Weak comparison of entity tags, RFC 7232 section 2.3.2.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        final String opaqueTag = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            final String trimmed = candidate.trim();
+            if (trimmed.equals("*") || opaqueTag(trimmed).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes the cached responses take
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of requests answered from the cache, including those answered with {@code 304 Not Modified}
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cacheable requests that had to be handed to the application
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of requests answered with {@code 304 Not Modified}
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * @return the number of responses evicted to stay within the byte budget
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
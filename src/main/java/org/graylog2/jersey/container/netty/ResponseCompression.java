@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response entities for clients that accept {@code gzip} or {@code deflate} content encoding.
+ *
+ * The encoding is negotiated from the {@code Accept-Encoding} header of the request, preferring {@code gzip} when
+ * both are acceptable with the same quality. Entities smaller than the threshold and those of excluded media types,
+ * typically formats that are compressed already, are sent as they are.
+ *
+ * Chunked responses are compressed as they are written: every flush of the entity stream emits what has been
+ * compressed so far, so streamed output still reaches the client as it is produced.
+ */
+public class ResponseCompression {
+    static final String GZIP = HttpHeaders.Values.GZIP;
+    static final String DEFLATE = HttpHeaders.Values.DEFLATE;
+
+    private static final int STREAM_BUFFER_SIZE = 512;
+
+    private final int level;
+    private final int threshold;
+    private final List<MediaType> excludedTypes;
+    private final AtomicLong compressedResponses = new AtomicLong();
+
+    /**
+     * @param level         the compression level, {@code 1} (fastest) to {@code 9} (smallest)
+     * @param threshold     the number of bytes below which entities of known length are not compressed
+     * @param excludedTypes comma separated media types never compressed, wildcards like {@code image/*} allowed
+     */
+    public ResponseCompression(int level, int threshold, String excludedTypes) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+        this.threshold = threshold;
+        this.excludedTypes = parseTypes(excludedTypes);
+    }
+
+    private static List<MediaType> parseTypes(String types) {
+        if (types == null || types.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<MediaType> parsed = new ArrayList<>();
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                parsed.add(MediaType.valueOf(type.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the content encoding to use for a client sending the given {@code Accept-Encoding} header,
+     *         {@code null} if it accepts neither {@code gzip} nor {@code deflate}
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float wildcard = -1;
+        for (String element : acceptEncoding.split(",")) {
+            final int parameters = element.indexOf(';');
+            final String coding = (parameters < 0 ? element : element.substring(0, parameters)).trim().toLowerCase(Locale.ENGLISH);
+            final float quality = parameters < 0 ? 1.0f : quality(element.substring(parameters + 1));
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = Math.max(gzip, quality);
+                    break;
+                case "deflate":
+                    deflate = Math.max(deflate, quality);
+                    break;
+                case "*":
+                    wildcard = quality;
+                    break;
+                default:
+                    break;
+            }
+        }
+        // codings not listed explicitly get the quality of the wildcard, if there is one
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    private static float quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase("q")) {
+                try {
+                    return Float.parseFloat(parameter.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1.0f;
+    }
+
+    /**
+     * @param length the length of the entity, {@code -1} if it is not known yet
+     * @return {@code true} if entities of the given type and length are compressed
+     */
+    boolean isCompressible(MediaType mediaType, long length) {
+        if (length >= 0 && length < threshold) {
+            return false;
+        }
+        if (mediaType == null) {
+            return true;
+        }
+        for (MediaType excluded : excludedTypes) {
+            if (excluded.isCompatible(mediaType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a stream compressing everything written to it into the given stream. Closing it writes the end of the
+     *         compressed data and closes the given stream.
+     */
+    OutputStream compress(OutputStream out, String encoding) throws IOException {
+        compressedResponses.incrementAndGet();
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, STREAM_BUFFER_SIZE, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), STREAM_BUFFER_SIZE, true) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // only the default deflater is released by DeflaterOutputStream itself
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the compressed copy of a complete entity
+     */
+    ChannelBuffer compress(ChannelBuffer content, String encoding) throws IOException {
+        // most of what we compress is text, which usually shrinks to well below half of its size
+        final ChannelBuffer compressed = ChannelBuffers.dynamicBuffer(Math.max(64, content.readableBytes() / 2));
+        final OutputStream out = compress(new ChannelBufferOutputStream(compressed), encoding);
+        content.getBytes(content.readerIndex(), out, content.readableBytes());
+        out.close();
+        return compressed;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the number of responses that have been compressed
+     */
+    public long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the responses to pipelined requests in the order the requests were received in.
+ *
+ * Every request on a connection gets the next sequence number. Only the response to the oldest request not answered
+ * completely yet is written to the connection, the messages of later responses are held back until all responses
+ * before them have been {@link #complete(long) completed}. Held back responses are kept in memory, so the number of
+ * requests a client may have outstanding on a connection is limited: once it is reached, the connection is not read
+ * from until the oldest response has been completed. The bytes held back are limited as well: once they exceed the
+ * budget, writers of later responses {@link #awaitTurn(long, long) wait} until their response is the oldest one.
+ *
+ * Messages are always written by the I/O worker of the connection, in the order they have been released in. Netty
+ * keeps track of the writability of a channel while it queues and sends messages, and that bookkeeping can go wrong
+ * when messages are queued by another thread at the same time, leaving the channel unwritable forever.
+ */
+final class ResponseSequencer {
+    private static final class Message {
+        private final Object message;
+        private final ChannelFuture future;
+        private final long bytes;
+
+        private Message(Object message, ChannelFuture future) {
+            this.message = message;
+            this.future = future;
+            this.bytes = bytes(message);
+        }
+
+        /**
+         * @return the number of bytes of the message held in memory, file regions are not
+         */
+        private static long bytes(Object message) {
+            if (message instanceof HttpMessage) {
+                return ((HttpMessage) message).getContent().readableBytes();
+            } else if (message instanceof HttpChunk) {
+                return ((HttpChunk) message).getContent().readableBytes();
+            } else if (message instanceof ChannelBuffer) {
+                return ((ChannelBuffer) message).readableBytes();
+            }
+            return 0;
+        }
+    }
+
+    private static final class HeldBackResponse {
+        private final List<Message> messages = new ArrayList<>();
+        private boolean complete = false;
+    }
+
+    private final ChannelState channelState;
+    private final Channel channel;
+
+    // all guarded by this
+    private long nextSequence = 0;
+    // the sequence number of the response currently written to the connection
+    private long head = 0;
+    private int maxOutstanding = Integer.MAX_VALUE;
+    private long maxHeldBackBytes = Long.MAX_VALUE;
+    private final Map<Long, HeldBackResponse> heldBack = new HashMap<>();
+    private long heldBackBytes = 0;
+    private final Queue<Message> released = new ArrayDeque<>();
+    private boolean drainScheduled = false;
+    private Throwable failure = null;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    ResponseSequencer(ChannelState channelState) {
+        this.channelState = channelState;
+        this.channel = channelState.getChannel();
+    }
+
+    /**
+     * Assigns the next sequence number to a request just received, suspending reads from the connection if it has
+     * as many requests outstanding as allowed.
+     *
+     * @param maxHeldBackBytes the number of bytes of responses that may be held back before their writers have to
+     *                         wait for their turn
+     */
+    synchronized long begin(int maxOutstanding, long maxHeldBackBytes) {
+        this.maxOutstanding = maxOutstanding;
+        this.maxHeldBackBytes = maxHeldBackBytes;
+        final long sequence = nextSequence++;
+        if (getOutstanding() >= maxOutstanding) {
+            channelState.suspendReads(ChannelState.SUSPENDED_BY_PIPELINE);
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the number of requests that have been received but not answered completely yet
+     */
+    synchronized int getOutstanding() {
+        return (int) (nextSequence - head);
+    }
+
+    /**
+     * Writes a message of the response with the given sequence number, or holds it back until the responses before
+     * it have been completed.
+     *
+     * @return a future notified once the message has actually been written
+     */
+    ChannelFuture write(long sequence, Object message) {
+        final Message pending = new Message(message, Channels.future(channel));
+        final boolean scheduleDrain;
+        synchronized (this) {
+            if (failure != null) {
+                pending.future.setFailure(failure);
+                return pending.future;
+            }
+            if (sequence != head) {
+                heldBack(sequence).messages.add(pending);
+                heldBackBytes += pending.bytes;
+                return pending.future;
+            }
+            released.add(pending);
+            scheduleDrain = !drainScheduled;
+            drainScheduled = true;
+        }
+        if (scheduleDrain) {
+            scheduleDrain();
+        }
+        return pending.future;
+    }
+
+    /**
+     * Writes an interim response, like {@code 100 Continue}, to the request that is going to get the next sequence
+     * number, once the responses to all requests before it have been completed.
+     */
+    ChannelFuture writeInterim(Object message) {
+        final long sequence;
+        synchronized (this) {
+            sequence = nextSequence;
+        }
+        return write(sequence, message);
+    }
+
+    /**
+     * @return {@code true} if the response with the given sequence number may be written without waiting for the
+     *         responses before it
+     */
+    synchronized boolean isTurn(long sequence) {
+        return sequence <= head || heldBackBytes < maxHeldBackBytes || failure != null;
+    }
+
+    /**
+     * Blocks the writer of the response with the given sequence number while more bytes than allowed are held back
+     * and its response is not the one written to the connection.
+     *
+     * @return {@code false} if it was still not the response's turn after the timeout
+     */
+    synchronized boolean awaitTurn(long sequence, long timeoutNanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (sequence > head && heldBackBytes >= maxHeldBackBytes && failure == null) {
+            final long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the response with the given sequence number as written completely, releasing the responses held back
+     * after it.
+     */
+    void complete(long sequence) {
+        final boolean scheduleDrain;
+        synchronized (this) {
+            if (sequence < head) {
+                return;
+            }
+            if (sequence != head) {
+                heldBack(sequence).complete = true;
+                return;
+            }
+            head++;
+            HeldBackResponse next;
+            while ((next = heldBack.remove(head)) != null) {
+                for (Message message : next.messages) {
+                    heldBackBytes -= message.bytes;
+                }
+                released.addAll(next.messages);
+                if (!next.complete) {
+                    break;
+                }
+                head++;
+            }
+            // the writer of the new head may go on, and the others if enough has been released
+            notifyAll();
+            if (getOutstanding() < maxOutstanding) {
+                channelState.resumeReads(ChannelState.SUSPENDED_BY_PIPELINE);
+            }
+            scheduleDrain = !released.isEmpty() && !drainScheduled;
+            if (scheduleDrain) {
+                drainScheduled = true;
+            }
+        }
+        if (scheduleDrain) {
+            scheduleDrain();
+        }
+    }
+
+    // must hold this
+    private HeldBackResponse heldBack(long sequence) {
+        HeldBackResponse response = heldBack.get(sequence);
+        if (response == null) {
+            response = new HeldBackResponse();
+            heldBack.put(sequence, response);
+        }
+        return response;
+    }
+
+    private void scheduleDrain() {
+        channel.getPipeline().execute(drain).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture executed) {
+                if (!executed.isSuccess()) {
+                    abort(executed.getCause());
+                }
+            }
+        });
+    }
+
+    // runs on the I/O worker
+    private void drain() {
+        while (true) {
+            final Message next;
+            synchronized (this) {
+                next = released.poll();
+                if (next == null) {
+                    drainScheduled = false;
+                    return;
+                }
+            }
+            channel.write(next.message).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture written) {
+                    if (written.isSuccess()) {
+                        next.future.setSuccess();
+                    } else {
+                        next.future.setFailure(written.getCause());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Fails all messages not written yet and all future ones, e.g. because the connection has been closed.
+     */
+    void abort(Throwable cause) {
+        final List<Message> failed = new ArrayList<>();
+        synchronized (this) {
+            if (failure == null) {
+                failure = cause;
+            }
+            failed.addAll(released);
+            released.clear();
+            for (HeldBackResponse response : heldBack.values()) {
+                failed.addAll(response.messages);
+            }
+            heldBack.clear();
+            heldBackBytes = 0;
+            drainScheduled = false;
+            notifyAll();
+        }
+        for (Message message : failed) {
+            message.future.setFailure(cause);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.internal.DeadLockProofWorker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps applications from writing responses faster than the client reads them.
+ *
+ * Before a chunk of a response is written, the writing thread waits until the connection is writable again, i.e.
+ * until Netty's outbound buffer has drained below the low water mark after it had exceeded the high water mark.
+ * Writers of responses to pipelined requests that are held back behind earlier responses wait as well, once the
+ * {@link ResponseSequencer} holds back more bytes than allowed. The Netty I/O workers are never blocked, because they
+ * are the ones draining the buffer, so applications running on them directly are not throttled.
+ */
+public class ResponseWriteThrottle {
+    private final long timeoutNanos;
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /**
+     * @param timeoutMillis how long a writer waits for a connection to become writable before it is closed,
+     *                      {@code <= 0} to wait forever
+     */
+    public ResponseWriteThrottle(long timeoutMillis) {
+        this.timeoutNanos = timeoutMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Blocks until the connection may be written to by the response with the given sequence number.
+     *
+     * @throws IOException if the connection has been closed while waiting or did not become writable in time. In the
+     *                     latter case it is closed as well, because the response cannot be completed anymore.
+     */
+    void awaitWritable(ChannelState channelState, long sequence) throws IOException {
+        final Channel channel = channelState.getChannel();
+        final ResponseSequencer sequencer = channelState.getResponseSequencer();
+        if (DeadLockProofWorker.PARENT.get() != null || (channel.isWritable() && sequencer.isTurn(sequence))) {
+            return;
+        }
+
+        throttledCount.incrementAndGet();
+        final long start = System.nanoTime();
+        final boolean writable;
+        try {
+            writable = sequencer.awaitTurn(sequence, timeoutNanos)
+                    && channelState.awaitWritable(remaining(start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the client to read the response");
+        } finally {
+            throttledNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        if (!channel.isOpen()) {
+            throw new IOException("Connection closed while writing the response");
+        }
+        if (!writable) {
+            timeoutCount.incrementAndGet();
+            channel.close();
+            throw new IOException("Client did not read the response for "
+                                          + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms, closing connection");
+        }
+    }
+
+    private long remaining(long start) {
+        return timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, timeoutNanos - (System.nanoTime() - start));
+    }
+
+    /**
+     * @return how many times a writer had to wait for a connection to become writable
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * @return the total time writers spent waiting for connections to become writable, in nanoseconds
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    /**
+     * @return how many connections were closed because they did not become writable in time
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+}
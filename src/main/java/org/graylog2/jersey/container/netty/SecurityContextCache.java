@@ -0,0 +1,261 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import javax.ws.rs.core.SecurityContext;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the identities authenticated for the {@code Authorization} headers of recent requests, so that
+ * clients sending the same credentials over and over are not authenticated again every time.
+ *
+ * Only the user principal, the authentication scheme and the roles of the {@link SecurityContext} created for a
+ * header are shared, every request gets a security context of its own around them. Roles are asked from the first
+ * context once and remembered. Entries are keyed by a SHA-256 hash of the header, so the credentials themselves are
+ * not kept around, and whether the request was made over a secure transport. They expire a fixed time after they
+ * have been created, and the least recently used one is evicted once the cache is full. Contexts implementing
+ * {@link HeaderAwareSecurityContext} are never cached, because they are handed the headers of each request.
+ *
+ * @see CacheAwareSecurityContextFactory
+ */
+public class SecurityContextCache {
+    private static final class Key {
+        private final byte[] hash;
+        private final boolean secure;
+        private final int hashCode;
+
+        private Key(byte[] hash, boolean secure) {
+            this.hash = hash;
+            this.secure = secure;
+            this.hashCode = 31 * Arrays.hashCode(hash) + (secure ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return secure == other.secure && Arrays.equals(hash, other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+        private final Principal principal;
+        private final String authenticationScheme;
+        private final SecurityContext authenticated;
+        private final ConcurrentMap<String, Boolean> roles = new ConcurrentHashMap<>();
+        private final String userName;
+        private final long expiresAt;
+
+        private Entry(SecurityContext authenticated, String userName, long expiresAt) {
+            this.principal = authenticated.getUserPrincipal();
+            this.authenticationScheme = authenticated.getAuthenticationScheme();
+            this.authenticated = authenticated;
+            this.userName = userName;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isUserInRole(String role) {
+            Boolean inRole = roles.get(role);
+            if (inRole == null) {
+                inRole = authenticated.isUserInRole(role);
+                roles.put(role, inRole);
+            }
+            return inRole;
+        }
+    }
+
+    /**
+     * The security context of a single request with cached credentials.
+     */
+    private static final class CachedSecurityContext implements SecurityContext {
+        private final Entry entry;
+        private final boolean secure;
+
+        private CachedSecurityContext(Entry entry, boolean secure) {
+            this.entry = entry;
+            this.secure = secure;
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return entry.principal;
+        }
+
+        @Override
+        public boolean isUserInRole(String role) {
+            return entry.isUserInRole(role);
+        }
+
+        @Override
+        public boolean isSecure() {
+            return secure;
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return entry.authenticationScheme;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform has to support it
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // guarded by itself
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /**
+     * @param maxSize    the number of security contexts to keep
+     * @param ttlMillis  the number of milliseconds a security context is handed out after it has been created
+     */
+    public SecurityContextCache(final int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return a security context for the identity authenticated for the same header and transport within the last
+     *         TTL, or {@code null} if there is none
+     */
+    SecurityContext get(String authorizationHeader, boolean secure) {
+        final Key key = key(authorizationHeader, secure);
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return new CachedSecurityContext(entry, secure);
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the identity of the security context created for the given header, unless it has to see the headers of
+     * each request.
+     *
+     * @return the security context to use for the request
+     */
+    SecurityContext put(String authorizationHeader, boolean secure, String userName, SecurityContext securityContext) {
+        if (securityContext == null || securityContext instanceof HeaderAwareSecurityContext) {
+            return securityContext;
+        }
+        final Key key = key(authorizationHeader, secure);
+        final Entry entry = new Entry(securityContext, userName, System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        // the roles are looked up the same way for all requests
+        return new CachedSecurityContext(entry, secure);
+    }
+
+    private static Key key(String authorizationHeader, boolean secure) {
+        // looking up the algorithm for each request is slow, digests are reset after each use
+        return new Key(DIGEST.get().digest(authorizationHeader.getBytes(StandardCharsets.UTF_8)), secure);
+    }
+
+    /**
+     * Forgets the security contexts of the given user, e.g. because their password or permissions changed.
+     */
+    public void invalidate(String userName) {
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (Objects.equals(iterator.next().userName, userName)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of requests that got a cached security context
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests with an {@code Authorization} header that had to create a security context
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
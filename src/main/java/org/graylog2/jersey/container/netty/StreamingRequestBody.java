@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Entity stream of a chunked request that is handed to Jersey before the request has been received completely.
+ *
+ * The Netty I/O worker {@link #offer(ChannelBuffer) offers} the chunks as they arrive and never blocks. Once more
+ * than {@code window} bytes are waiting to be read, the connection is no longer read from until the application
+ * consumed half of them, so the memory used by a request is capped at roughly the window plus one chunk.
+ */
+final class StreamingRequestBody extends InputStream {
+    private final ChannelState channelState;
+    private final long window;
+    private final RequestBodyBudget budget;
+
+    private final Object lock = new Object();
+    // all guarded by lock
+    private final Queue<ChannelBuffer> buffers = new ArrayDeque<>();
+    private long bufferedBytes = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    StreamingRequestBody(ChannelState channelState, long window, RequestBodyBudget budget) {
+        this.channelState = channelState;
+        this.window = window;
+        this.budget = budget;
+    }
+
+    /**
+     * Called from the I/O worker with the content of the next chunk.
+     */
+    void offer(ChannelBuffer content) {
+        synchronized (lock) {
+            if (closed || finished || failure != null) {
+                return;
+            }
+            if (!content.readable()) {
+                return;
+            }
+            budget.reserve(channelState, content.readableBytes());
+            buffers.add(content);
+            bufferedBytes += content.readableBytes();
+            // suspend while holding the lock, otherwise the reader could resume reads before we suspend them
+            if (bufferedBytes > window) {
+                channelState.suspendReads(ChannelState.SUSPENDED_BY_REQUEST_BODY);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called from the I/O worker once the last chunk has been offered.
+     */
+    void finish() {
+        synchronized (lock) {
+            finished = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Fails all current and future reads, e.g. because the connection was closed before the request was complete.
+     */
+    void abort(IOException cause) {
+        final long discarded;
+        synchronized (lock) {
+            if (finished) {
+                return;
+            }
+            failure = cause;
+            discarded = discard();
+            lock.notifyAll();
+        }
+        budget.release(discarded);
+    }
+
+    // must hold lock
+    private long discard() {
+        final long discarded = bufferedBytes;
+        buffers.clear();
+        bufferedBytes = 0;
+        return discarded;
+    }
+
+    long getBufferedBytes() {
+        synchronized (lock) {
+            return bufferedBytes;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        final int read;
+        synchronized (lock) {
+            final ChannelBuffer head = awaitBuffer();
+            if (head == null) {
+                return -1;
+            }
+            read = Math.min(len, head.readableBytes());
+            head.readBytes(b, off, read);
+            if (!head.readable()) {
+                buffers.poll();
+            }
+            bufferedBytes -= read;
+            if (bufferedBytes <= window / 2) {
+                channelState.resumeReads(ChannelState.SUSPENDED_BY_REQUEST_BODY);
+            }
+        }
+        budget.release(read);
+        return read;
+    }
+
+    private ChannelBuffer awaitBuffer() throws IOException {
+        while (true) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            final ChannelBuffer head = buffers.peek();
+            if (head != null) {
+                return head;
+            }
+            if (finished) {
+                return null;
+            }
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for request body");
+            }
+        }
+    }
+
+    @Override
+    public int available() {
+        synchronized (lock) {
+            return (int) Math.min(Integer.MAX_VALUE, bufferedBytes);
+        }
+    }
+
+    /**
+     * Discards everything not read yet. The remaining chunks of the request are still read from the connection,
+     * but dropped right away.
+     */
+    @Override
+    public void close() {
+        final long discarded;
+        synchronized (lock) {
+            closed = true;
+            discarded = discard();
+            channelState.resumeReads(ChannelState.SUSPENDED_BY_REQUEST_BODY);
+            lock.notifyAll();
+        }
+        budget.release(discarded);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 TORCH GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.graylog2.jersey.container.netty;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated by many threads at once, like {@code java.util.concurrent.atomic.LongAdder} which we can't use on
+ * Java 7.
+ *
+ * Every thread adds to one of a fixed number of cells picked by its id, each cell on a cache line of its own, so that
+ * threads rarely contend for the same cell. Reading the counter sums up all cells and is comparatively slow.
+ */
+final class StripedCounter {
+    // longs per cache line of 64 bytes
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes() {
+        final int wanted = 2 * Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < wanted && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        final long id = Thread.currentThread().getId();
+        // thread ids are handed out sequentially, spreading their bits is good enough
+        final int stripe = (int) (id ^ (id >>> 7)) & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,101 @@
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ByteRangesTest {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void testParse() {
+        final ByteRanges closed = ByteRanges.parse("bytes=0-499", 1000, null);
+        assertTrue(closed.isSatisfiable());
+        assertFalse(closed.isMultipart());
+        assertEquals(closed.getContentRange(), "bytes 0-499/1000");
+        assertEquals(closed.getContentLength(), 500);
+
+        assertEquals(ByteRanges.parse("bytes=500-", 1000, null).getContentRange(), "bytes 500-999/1000");
+        assertEquals(ByteRanges.parse("bytes=-100", 1000, null).getContentRange(), "bytes 900-999/1000");
+        assertEquals(ByteRanges.parse("bytes=-2000", 1000, null).getContentRange(), "bytes 0-999/1000");
+        assertEquals(ByteRanges.parse("bytes=900-5000", 1000, null).getContentRange(), "bytes 900-999/1000");
+        assertEquals(ByteRanges.parse("Bytes= 1-1 ", 1000, null).getContentRange(), "bytes 1-1/1000");
+
+        final ByteRanges several = ByteRanges.parse("bytes=0-9, 20-29", 1000, "text/plain");
+        assertTrue(several.isMultipart());
+        assertEquals(several.getRanges().size(), 2);
+        assertTrue(several.getMultipartContentType().startsWith("multipart/byteranges; boundary="));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRanges.parse(null, 1000, null));
+        assertNull(ByteRanges.parse("items=0-9", 1000, null));
+        assertNull(ByteRanges.parse("bytes=", 1000, null));
+        assertNull(ByteRanges.parse("bytes=10", 1000, null));
+        assertNull(ByteRanges.parse("bytes=9-0", 1000, null));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000, null));
+        assertNull(ByteRanges.parse("bytes=0-99,50-149", 1000, null));
+
+        final StringBuilder tooMany = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            tooMany.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        assertNull(ByteRanges.parse(tooMany.toString(), 1000, null));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        final ByteRanges beyond = ByteRanges.parse("bytes=1000-", 1000, null);
+        assertFalse(beyond.isSatisfiable());
+        assertEquals(beyond.getContentRange(), "bytes */1000");
+        assertFalse(ByteRanges.parse("bytes=-0", 1000, null).isSatisfiable());
+        assertFalse(ByteRanges.parse("bytes=0-", 0, null).isSatisfiable());
+        // satisfiable as long as one range is
+        assertTrue(ByteRanges.parse("bytes=2000-,0-0", 1000, null).isSatisfiable());
+    }
+
+    @Test
+    public void testIfRangeMatches() {
+        final String date = "Wed, 21 Oct 2015 07:28:00 GMT";
+        assertTrue(ByteRanges.ifRangeMatches(null, null, null));
+        assertTrue(ByteRanges.ifRangeMatches("\"v1\"", "\"v1\"", null));
+        assertFalse(ByteRanges.ifRangeMatches("\"v1\"", "\"v2\"", null));
+        assertFalse(ByteRanges.ifRangeMatches("W/\"v1\"", "W/\"v1\"", null));
+        assertFalse(ByteRanges.ifRangeMatches("\"v1\"", null, date));
+        assertTrue(ByteRanges.ifRangeMatches(date, null, date));
+        assertFalse(ByteRanges.ifRangeMatches(date, "\"v1\"", null));
+    }
+
+    @Test
+    public void testSlice() {
+        final byte[] bytes = "0123456789abcdefghij".getBytes(US_ASCII);
+        final ChannelBuffer entity = ChannelBuffers.wrappedBuffer(bytes);
+
+        final ChannelBuffer single = ByteRanges.parse("bytes=10-14", bytes.length, null).slice(entity);
+        assertEquals(single.toString(US_ASCII), "abcde");
+        assertEquals(entity.readableBytes(), bytes.length);
+
+        final ByteRanges ranges = ByteRanges.parse("bytes=0-1,-2", bytes.length, "text/plain");
+        final ChannelBuffer multipart = ranges.slice(entity);
+        final String boundary = ranges.getMultipartContentType().substring("multipart/byteranges; boundary=".length());
+        assertEquals(multipart.toString(US_ASCII),
+                     "\r\n--" + boundary + "\r\n"
+                             + "Content-Type: text/plain\r\n"
+                             + "Content-Range: bytes 0-1/20\r\n\r\n"
+                             + "01"
+                             + "\r\n--" + boundary + "\r\n"
+                             + "Content-Type: text/plain\r\n"
+                             + "Content-Range: bytes 18-19/20\r\n\r\n"
+                             + "ij"
+                             + "\r\n--" + boundary + "--\r\n");
+        assertEquals(ranges.getContentLength(), multipart.readableBytes());
+    }
+}
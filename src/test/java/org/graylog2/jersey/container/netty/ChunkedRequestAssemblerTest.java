@@ -5,6 +5,8 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.DefaultChannelPipeline;
 import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpMethod;
@@ -13,6 +15,13 @@ import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
 public class ChunkedRequestAssemblerTest {
     private static final HttpChunk EMPTY_CHUNK = new HttpChunk() {
         @Override
@@ -61,4 +70,163 @@ public class ChunkedRequestAssemblerTest {
         chunkedRequestAssembler.setup(channel, httpRequest);
         chunkedRequestAssembler.addChunk(channel, EMPTY_CHUNK);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void addChunkHandlesMissingPartialRequest() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        chunkedRequestAssembler.addChunk(channelState, EMPTY_CHUNK);
+        chunkedRequestAssembler.addChunk(channelState, null);
+        assertNull(channelState.getPartialRequest());
+    }
+
+    @Test
+    public void addChunkAddsToPartialRequest() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "");
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 1);
+        assertEquals(chunkedRequestAssembler.getPendingBytes(), 3);
+    }
+
+    @Test
+    public void assembleJoinsChunkContents() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        httpRequest.setChunked(true);
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        chunkedRequestAssembler.addChunk(channelState, EMPTY_CHUNK);
+        chunkedRequestAssembler.addChunk(channelState, chunk("bar"));
+
+        final HttpRequest assembled = chunkedRequestAssembler.assemble(channelState);
+        assertEquals(assembled.getContent().toString(StandardCharsets.UTF_8), "foobar");
+    }
+
+    @Test
+    public void assembleConsolidatesFragmentedBodies() throws Exception {
+        chunkedRequestAssembler = new ChunkedRequestAssembler(2);
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        chunkedRequestAssembler.addChunk(channelState, chunk("bar"));
+        chunkedRequestAssembler.addChunk(channelState, chunk("baz"));
+
+        final ChannelBuffer content = chunkedRequestAssembler.assemble(channelState).getContent();
+        assertEquals(content.toString(StandardCharsets.UTF_8), "foobarbaz");
+        assertEquals(content.capacity(), 9);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void deprecatedChannelMethodsAssembleRequest() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        httpRequest.setChunked(true);
+        chunkedRequestAssembler.setup(channel, httpRequest);
+        chunkedRequestAssembler.addChunk(channel, chunk("foo"));
+        chunkedRequestAssembler.addChunk(channel, chunk("bar"));
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 1);
+
+        assertEquals(chunkedRequestAssembler.assemble(channel).getContent().toString(StandardCharsets.UTF_8), "foobar");
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 0);
+        assertNull(chunkedRequestAssembler.assemble(channel));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void deprecatedChannelMethodsReleaseClosedChannels() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        chunkedRequestAssembler.setup(channel, httpRequest);
+        chunkedRequestAssembler.addChunk(channel, chunk("foo"));
+        assertEquals(chunkedRequestAssembler.getPendingBytes(), 3);
+
+        // an upload aborted by the client
+        channel.close().awaitUninterruptibly();
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 0);
+        assertEquals(chunkedRequestAssembler.getPendingBytes(), 0);
+        assertNull(chunkedRequestAssembler.assemble(channel));
+    }
+
+    private static HttpChunk chunk(String content) {
+        return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(content, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void releaseForgetsPartialRequest() throws Exception {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 1);
+        assertEquals(chunkedRequestAssembler.getPendingBytes(), 3);
+
+        chunkedRequestAssembler.release(channelState);
+        assertEquals(chunkedRequestAssembler.getPendingRequests(), 0);
+        assertEquals(chunkedRequestAssembler.getPendingBytes(), 0);
+        assertNull(channelState.getPartialRequest());
+    }
+
+    @Test(expectedExceptions = TooLongFrameException.class)
+    public void addChunkRejectsTooLargeBodies() throws Exception {
+        chunkedRequestAssembler = new ChunkedRequestAssembler(16, 5, new RequestBodyBudget(0));
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        try {
+            chunkedRequestAssembler.addChunk(channelState, chunk("bar"));
+        } finally {
+            assertNull(channelState.getPartialRequest());
+            assertEquals(chunkedRequestAssembler.getPendingBytes(), 0);
+        }
+    }
+
+    @Test
+    public void exhaustedBudgetSuspendsReads() throws Exception {
+        final RequestBodyBudget budget = new RequestBodyBudget(4);
+        chunkedRequestAssembler = new ChunkedRequestAssembler(16, Long.MAX_VALUE, budget);
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        Channel channel = channelFactory.newChannel(pipeline);
+        ChannelState channelState = new ChannelState(channel);
+        HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "");
+        chunkedRequestAssembler.setup(channelState, httpRequest);
+        chunkedRequestAssembler.addChunk(channelState, chunk("foo"));
+        assertFalse(channelState.isReadSuspended(ChannelState.SUSPENDED_BY_MEMORY_BUDGET));
+
+        chunkedRequestAssembler.addChunk(channelState, chunk("bar"));
+        assertTrue(channelState.isReadSuspended(ChannelState.SUSPENDED_BY_MEMORY_BUDGET));
+        assertEquals(budget.getUsed(), 6);
+
+        final HttpRequest assembled = chunkedRequestAssembler.assemble(channelState);
+        assertEquals(budget.getUsed(), 6);
+        chunkedRequestAssembler.releaseAssembled(assembled);
+        assertEquals(budget.getUsed(), 0);
+        assertFalse(channelState.isReadSuspended(ChannelState.SUSPENDED_BY_MEMORY_BUDGET));
+    }
+}
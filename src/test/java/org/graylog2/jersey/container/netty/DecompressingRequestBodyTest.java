@@ -0,0 +1,74 @@
+package org.graylog2.jersey.container.netty;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DecompressingRequestBodyTest {
+
+    @Test
+    public void testIsSupported() {
+        assertTrue(DecompressingRequestBody.isSupported("gzip"));
+        assertTrue(DecompressingRequestBody.isSupported(" GZIP"));
+        assertTrue(DecompressingRequestBody.isSupported("x-gzip"));
+        assertTrue(DecompressingRequestBody.isSupported("deflate"));
+        assertFalse(DecompressingRequestBody.isSupported("identity"));
+        assertFalse(DecompressingRequestBody.isSupported("br"));
+        assertFalse(DecompressingRequestBody.isSupported(null));
+    }
+
+    @Test
+    public void testDecompress() throws IOException {
+        final byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i % 7);
+        }
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        compress(new GZIPOutputStream(gzipped), body);
+        assertEquals(readFully(new DecompressingRequestBody(new ByteArrayInputStream(gzipped.toByteArray()), "gzip", Long.MAX_VALUE)), body);
+
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        compress(new DeflaterOutputStream(deflated), body);
+        assertEquals(readFully(new DecompressingRequestBody(new ByteArrayInputStream(deflated.toByteArray()), "deflate", body.length)), body);
+    }
+
+    @Test
+    public void testMaxSize() throws IOException {
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        compress(new GZIPOutputStream(gzipped), new byte[1024 * 1024]);
+        final InputStream stream = new DecompressingRequestBody(new ByteArrayInputStream(gzipped.toByteArray()), "gzip", 1000);
+        try {
+            readFully(stream);
+            fail("decompressed body must not be larger than allowed");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    private static void compress(OutputStream out, byte[] body) throws IOException {
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        stream.close();
+        return out.toByteArray();
+    }
+}
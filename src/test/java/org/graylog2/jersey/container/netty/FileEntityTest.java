@@ -0,0 +1,63 @@
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FileEntityTest {
+
+    @Test
+    public void testOf() throws IOException {
+        final File file = tempFile(1000);
+        assertNull(FileEntity.of("not a file"));
+        assertNull(FileEntity.of(file.getParentFile()));
+        assertNull(FileEntity.of(new File(file.getPath() + ".missing")));
+
+        final FileEntity fromFile = FileEntity.of(file);
+        assertEquals(fromFile.getCount(), 1000);
+        fromFile.close();
+        final FileEntity fromPath = FileEntity.of(file.toPath());
+        assertEquals(fromPath.getCount(), 1000);
+        fromPath.close();
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ).position(400);
+        final FileEntity fromChannel = FileEntity.of(channel);
+        assertEquals(fromChannel.getCount(), 600);
+        fromChannel.close();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testToMessage() throws IOException {
+        final File file = tempFile(1000);
+        final FileEntity entity = FileEntity.of(file);
+        try {
+            final Object region = entity.toMessage(true, 256);
+            assertTrue(region instanceof FileRegion);
+            assertEquals(((FileRegion) region).getCount(), 1000);
+            final Object chunked = entity.toMessage(false, 256);
+            assertTrue(chunked instanceof ChunkedNioFile);
+            assertEquals(((ChunkedNioFile) chunked).getEndOffset(), 1000);
+        } finally {
+            entity.close();
+        }
+    }
+
+    private static File tempFile(int length) throws IOException {
+        final File file = File.createTempFile("jersey-netty", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[length]);
+        return file;
+    }
+}
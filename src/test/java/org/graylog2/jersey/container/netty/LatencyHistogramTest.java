@@ -0,0 +1,40 @@
+package org.graylog2.jersey.container.netty;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            assertEquals(LatencyHistogram.bucket(LatencyHistogram.lowerBound(bucket)), bucket);
+        }
+        // bounded so that micros * 3 cannot overflow
+        for (long micros = 1; micros <= Long.MAX_VALUE / 3; micros = micros * 3 / 2 + 1) {
+            final int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= micros, "micros " + micros);
+            assertTrue(bucket == LatencyHistogram.BUCKETS - 1 || LatencyHistogram.lowerBound(bucket + 1) > micros,
+                       "micros " + micros);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getPercentileMicros(99), 0);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMaxMicros(), 1000000);
+        assertEquals(histogram.getSumMicros(), 500500000);
+        final long median = histogram.getPercentileMicros(50);
+        assertTrue(median >= 500000 && median <= 500000 * 5 / 4, "median " + median);
+        assertEquals(histogram.getPercentileMicros(100), 1000000);
+    }
+}
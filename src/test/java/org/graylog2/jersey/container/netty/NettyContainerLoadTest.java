@@ -0,0 +1,369 @@
+package org.graylog2.jersey.container.netty;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Response;
+import com.sun.management.ThreadMXBean;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Puts a container on loopback under load from a fixed number of clients sending a mix of small GETs, large POSTs and
+ * chunked responses, reports the throughput and latency percentiles, and fails if the server allocated more per
+ * request than its budget.
+ *
+ * The allocations are those of the Netty I/O threads and the request executor, as reported by the
+ * {@link ThreadMXBean}. The clients' threads are not counted, so the budgets cover everything from decoding requests
+ * to encoding responses. They are generous on purpose, to catch regressions like copying bodies once more rather than
+ * small changes.
+ *
+ * The load can be changed with the system properties {@code loadTest.concurrency}, {@code loadTest.durationMillis},
+ * {@code loadTest.warmupMillis} and {@code loadTest.mix}, e.g. {@code get=8,post=1,stream=1}, the budgets with
+ * {@code loadTest.budget.get}, {@code loadTest.budget.post} and {@code loadTest.budget.stream} in bytes per request.
+ */
+public class NettyContainerLoadTest {
+    private static final int CONCURRENCY = Integer.getInteger("loadTest.concurrency", 16);
+    private static final long DURATION_MILLIS = Long.getLong("loadTest.durationMillis", 2000);
+    private static final long WARMUP_MILLIS = Long.getLong("loadTest.warmupMillis", 1000);
+    private static final String MIX = System.getProperty("loadTest.mix", "get=8,post=1,stream=1");
+    private static final int SMALL_SIZE = 128;
+    private static final int POST_SIZE = 256 * 1024;
+    private static final int STREAM_SIZE = 1024 * 1024;
+    private static final byte[] POST_BODY = new byte[POST_SIZE];
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private enum Operation {
+        GET(128 * 1024) {
+            @Override
+            Response send(AsyncHttpClient client, String baseUrl) throws Exception {
+                return client.prepareGet(baseUrl + "small").execute().get();
+            }
+
+            @Override
+            boolean isExpected(Response response) throws IOException {
+                return response.getResponseBodyAsBytes().length == SMALL_SIZE;
+            }
+        },
+        POST(128 * 1024 + 4 * POST_SIZE) {
+            @Override
+            Response send(AsyncHttpClient client, String baseUrl) throws Exception {
+                return client.preparePost(baseUrl + "upload")
+                        .setHeader("Content-Type", MediaType.APPLICATION_OCTET_STREAM)
+                        .setBody(POST_BODY)
+                        .execute().get();
+            }
+
+            @Override
+            boolean isExpected(Response response) throws IOException {
+                return response.getResponseBody().equals(String.valueOf(POST_SIZE));
+            }
+        },
+        STREAM(128 * 1024 + 2 * STREAM_SIZE) {
+            @Override
+            Response send(AsyncHttpClient client, String baseUrl) throws Exception {
+                return client.prepareGet(baseUrl + "stream").execute().get();
+            }
+
+            @Override
+            boolean isExpected(Response response) throws IOException {
+                return response.getResponseBodyAsBytes().length == STREAM_SIZE;
+            }
+        };
+
+        private final long allocationBudget;
+
+        Operation(long defaultAllocationBudget) {
+            this.allocationBudget = Long.getLong("loadTest.budget." + name().toLowerCase(), defaultAllocationBudget);
+        }
+
+        abstract Response send(AsyncHttpClient client, String baseUrl) throws Exception;
+
+        abstract boolean isExpected(Response response) throws IOException;
+    }
+
+    @Path("/")
+    public static class LoadTestResource {
+        @GET
+        @Path("small")
+        @Produces(MediaType.APPLICATION_OCTET_STREAM)
+        public byte[] small() {
+            return new byte[SMALL_SIZE];
+        }
+
+        @POST
+        @Path("upload")
+        @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+        @Produces(MediaType.TEXT_PLAIN)
+        public String upload(InputStream body) throws IOException {
+            final byte[] buffer = new byte[8192];
+            long length = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                length += read;
+            }
+            return String.valueOf(length);
+        }
+
+        @GET
+        @Path("stream")
+        @Produces(MediaType.APPLICATION_OCTET_STREAM)
+        public StreamingOutput stream() {
+            return new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    final byte[] piece = new byte[8192];
+                    for (int written = 0; written < STREAM_SIZE; written += piece.length) {
+                        output.write(piece);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Remembers the threads it created, to tell the server's threads from the others.
+     */
+    private static class ServerThreadFactory implements ThreadFactory {
+        private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "loadtest-server-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+        }
+
+        Map<Long, Long> allocatedBytes() {
+            final Map<Long, Long> allocated = new HashMap<>();
+            for (Thread thread : threads) {
+                if (thread.isAlive()) {
+                    allocated.put(thread.getId(), THREADS.getThreadAllocatedBytes(thread.getId()));
+                }
+            }
+            return allocated;
+        }
+    }
+
+    private static class Result {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLongArray counts = new AtomicLongArray(Operation.values().length);
+        private final AtomicInteger failures = new AtomicInteger();
+        private long elapsedNanos;
+        private long allocatedBytes;
+
+        long getRequests() {
+            return latency.getCount();
+        }
+
+        long getAllocationBudget() {
+            long budget = 0;
+            for (Operation operation : Operation.values()) {
+                budget += counts.get(operation.ordinal()) * operation.allocationBudget;
+            }
+            return budget;
+        }
+    }
+
+    private final ServerThreadFactory serverThreads = new ServerThreadFactory();
+    private ExecutorService requestExecutor;
+    private ServerBootstrap bootstrap;
+    private NettyContainer container;
+    private AsyncHttpClient client;
+    private String baseUrl;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        container = new NettyContainer(new ResourceConfig()
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
+                .register(LoadTestResource.class));
+        requestExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), serverThreads);
+        container.setRequestExecutor(requestExecutor);
+
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(serverThreads),
+                Executors.newCachedThreadPool(serverThreads)));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("chunks", new ChunkedWriteHandler());
+                pipeline.addLast("jerseyHandler", container);
+                return pipeline;
+            }
+        });
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+        final Channel channel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+        baseUrl = "http://127.0.0.1:" + ((InetSocketAddress) channel.getLocalAddress()).getPort() + "/";
+
+        client = new AsyncHttpClient(new AsyncHttpClientConfig.Builder()
+                                             .setAllowPoolingConnections(true)
+                                             .setMaxConnectionsPerHost(CONCURRENCY)
+                                             .setRequestTimeout(30 * 1000)
+                                             .build());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (client != null) {
+            client.close();
+        }
+        if (bootstrap != null) {
+            bootstrap.releaseExternalResources();
+        }
+        if (container != null) {
+            container.shutdown();
+        }
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallGets() throws Exception {
+        load("get=1");
+    }
+
+    @Test
+    public void testLargePosts() throws Exception {
+        load("post=1");
+    }
+
+    @Test
+    public void testChunkedStreams() throws Exception {
+        load("stream=1");
+    }
+
+    @Test
+    public void testMix() throws Exception {
+        load(MIX);
+    }
+
+    private void load(String mix) throws Exception {
+        final Operation[] schedule = schedule(mix);
+        run(schedule, WARMUP_MILLIS);
+        final Result result = run(schedule, DURATION_MILLIS);
+
+        final long requests = result.getRequests();
+        System.out.printf("%-24s %8d requests %10.0f req/s   p50 %8.2f ms   p99 %8.2f ms   p999 %8.2f ms   %10d bytes/request%n",
+                          mix,
+                          requests,
+                          requests * 1e9 / result.elapsedNanos,
+                          result.latency.getPercentileMicros(50) / 1000.0,
+                          result.latency.getPercentileMicros(99) / 1000.0,
+                          result.latency.getPercentileMicros(99.9) / 1000.0,
+                          requests == 0 ? 0 : result.allocatedBytes / requests);
+
+        assertEquals(result.failures.get(), 0, "failed requests");
+        assertTrue(requests > 0, "no requests completed");
+        assertTrue(result.allocatedBytes <= result.getAllocationBudget(),
+                   "allocated " + result.allocatedBytes / requests + " bytes per request, budget is "
+                           + result.getAllocationBudget() / requests);
+    }
+
+    /**
+     * @param mix the weights of the operations, like {@code get=8,post=1}
+     * @return the operations in the order they are sent, each client starting at a different one
+     */
+    private static Operation[] schedule(String mix) {
+        final List<Operation> schedule = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            final String[] operationAndWeight = part.trim().split("=");
+            final Operation operation = Operation.valueOf(operationAndWeight[0].trim().toUpperCase());
+            final int weight = operationAndWeight.length > 1 ? Integer.parseInt(operationAndWeight[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                schedule.add(operation);
+            }
+        }
+        return schedule.toArray(new Operation[schedule.size()]);
+    }
+
+    private Result run(final Operation[] schedule, long durationMillis) throws Exception {
+        final Result result = new Result();
+        final ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+        final Map<Long, Long> allocatedBefore = serverThreads.allocatedBytes();
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < CONCURRENCY; i++) {
+                final int first = i;
+                futures.add(clients.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int next = first; System.nanoTime() < deadline; next++) {
+                            final Operation operation = schedule[next % schedule.length];
+                            final long sentAt = System.nanoTime();
+                            final Response response = operation.send(client, baseUrl);
+                            result.latency.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+                            result.counts.incrementAndGet(operation.ordinal());
+                            if (response.getStatusCode() != 200 || !operation.isExpected(response)) {
+                                result.failures.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+
+        for (Map.Entry<Long, Long> allocated : serverThreads.allocatedBytes().entrySet()) {
+            final Long before = allocatedBefore.get(allocated.getKey());
+            result.allocatedBytes += allocated.getValue() - (before == null ? 0 : before);
+        }
+        return result;
+    }
+}
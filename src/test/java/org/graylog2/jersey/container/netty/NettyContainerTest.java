@@ -26,15 +26,20 @@ import com.ning.http.client.HttpResponseBodyPart;
 import com.ning.http.client.HttpResponseHeaders;
 import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
 import jersey.repackaged.com.google.common.collect.ImmutableList;
+import jersey.repackaged.com.google.common.collect.ImmutableMap;
 import jersey.repackaged.com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.glassfish.jersey.internal.util.Base64;
 import org.glassfish.jersey.process.Inflector;
 import org.glassfish.jersey.server.ChunkedOutput;
 import org.glassfish.jersey.server.ContainerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
 import org.glassfish.jersey.server.model.Resource;
 import org.glassfish.jersey.server.model.ResourceMethod;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -45,25 +50,54 @@ import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.testng.annotations.Test;
 
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.ext.MessageBodyWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.Principal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class NettyContainerTest {
@@ -146,6 +180,905 @@ public class NettyContainerTest {
         bootstrap.shutdown();
     }
 
+    @Test
+    public void testCoalescedChunkedOutput() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, StreamingOutput> inflector = new Inflector<ContainerRequestContext, StreamingOutput>() {
+            @Override
+            public StreamingOutput apply(ContainerRequestContext containerRequestContext) {
+                return new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        for (int i = 0; i < 10000; i++) {
+                            output.write('x');
+                        }
+                    }
+                };
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_RESPONSE_CHUNK_SIZE, 4096,
+                NettyContainer.PROPERTY_RESPONSE_BUFFERING, false);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final List<Integer> chunkSizes = new ArrayList<>();
+        getHttpClient().prepareGet("http://localhost:" + port + "/").execute(new AsyncHandler<Object>() {
+            @Override
+            public void onThrowable(Throwable t) {
+                fail("Should not throw up", t);
+            }
+
+            @Override
+            public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
+                chunkSizes.add(bodyPart.getBodyPartBytes().length);
+                return STATE.CONTINUE;
+            }
+
+            @Override
+            public STATE onStatusReceived(HttpResponseStatus responseStatus) throws Exception {
+                assertEquals(responseStatus.getStatusCode(), 200);
+                return STATE.CONTINUE;
+            }
+
+            @Override
+            public STATE onHeadersReceived(HttpResponseHeaders headers) throws Exception {
+                return STATE.CONTINUE;
+            }
+
+            @Override
+            public Object onCompleted() throws Exception {
+                return "";
+            }
+        }).get();
+        assertEquals(chunkSizes, ImmutableList.of(4096, 4096, 10000 - 2 * 4096));
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testResponseBuffering() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, StreamingOutput> inflector = new Inflector<ContainerRequestContext, StreamingOutput>() {
+            @Override
+            public StreamingOutput apply(final ContainerRequestContext containerRequestContext) {
+                return new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        final int size = Integer.parseInt(containerRequestContext.getUriInfo().getQueryParameters().getFirst("size"));
+                        output.write(repeat("x", size).getBytes("UTF-8"));
+                    }
+                };
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, 1024);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        final Response small = client.prepareGet("http://localhost:" + port + "/?size=1000").execute().get();
+        assertEquals(small.getStatusCode(), 200);
+        assertEquals(small.getHeader("Content-Length"), "1000");
+        assertEquals(small.getHeader("Transfer-Encoding"), null);
+        assertEquals(small.getResponseBody().length(), 1000);
+
+        final Response large = client.prepareGet("http://localhost:" + port + "/?size=2000").execute().get();
+        assertEquals(large.getStatusCode(), 200);
+        assertEquals(large.getHeader("Content-Length"), null);
+        assertEquals(large.getHeader("Transfer-Encoding"), "chunked");
+        assertEquals(large.getResponseBody().length(), 2000);
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testEntityLongerThanAnnounced() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, javax.ws.rs.core.Response> inflector = new Inflector<ContainerRequestContext, javax.ws.rs.core.Response>() {
+            @Override
+            public javax.ws.rs.core.Response apply(ContainerRequestContext containerRequestContext) {
+                final StreamingOutput entity = new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        output.write(repeat("x", 2000).getBytes("UTF-8"));
+                    }
+                };
+                return javax.ws.rs.core.Response.ok(entity).header("Content-Length", 100).build();
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_RESPONSE_CHUNK_SIZE, 1024);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        // the entity outgrows its pooled buffer, the client reads as much as was announced
+        final Response response = getHttpClient().prepareGet("http://localhost:" + port + "/").execute().get();
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getHeader("Content-Length"), "100");
+        assertEquals(response.getResponseBody(), repeat("x", 100));
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testResponseCompression() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, StreamingOutput> inflector = new Inflector<ContainerRequestContext, StreamingOutput>() {
+            @Override
+            public StreamingOutput apply(final ContainerRequestContext containerRequestContext) {
+                return new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        final int size = Integer.parseInt(containerRequestContext.getUriInfo().getQueryParameters().getFirst("size"));
+                        output.write(repeat("x", size).getBytes("UTF-8"));
+                    }
+                };
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_RESPONSE_COMPRESSION, true,
+                NettyContainer.PROPERTY_RESPONSE_COMPRESSION_THRESHOLD, 100);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        // the async http client decompresses responses itself and drops their Content-Encoding, check the raw ones
+        // buffered and sent with a Content-Length
+        final HttpURLConnection buffered = openConnection(port, "/?size=1000", "gzip");
+        assertEquals(buffered.getResponseCode(), 200);
+        assertEquals(buffered.getHeaderField("Content-Encoding"), "gzip");
+        assertEquals(buffered.getHeaderField("Vary"), "Accept-Encoding");
+        final byte[] bufferedBody = readBytes(buffered.getInputStream());
+        assertEquals(Integer.parseInt(buffered.getHeaderField("Content-Length")), bufferedBody.length);
+        assertTrue(bufferedBody.length < 1000);
+        assertEquals(new String(readBytes(new GZIPInputStream(new ByteArrayInputStream(bufferedBody))), "UTF-8"),
+                     repeat("x", 1000));
+
+        // compressed as it is streamed
+        final HttpURLConnection chunked = openConnection(port, "/?size=100000", "deflate");
+        assertEquals(chunked.getResponseCode(), 200);
+        assertEquals(chunked.getHeaderField("Content-Encoding"), "deflate");
+        assertEquals(chunked.getHeaderField("Vary"), "Accept-Encoding");
+        assertEquals(chunked.getHeaderField("Transfer-Encoding"), "chunked");
+        final byte[] chunkedBody = readBytes(chunked.getInputStream());
+        assertTrue(chunkedBody.length < 100000);
+        assertEquals(new String(readBytes(new InflaterInputStream(new ByteArrayInputStream(chunkedBody))), "UTF-8"),
+                     repeat("x", 100000));
+
+        final HttpURLConnection small = openConnection(port, "/?size=10", "gzip");
+        assertEquals(small.getHeaderField("Content-Encoding"), null);
+        assertEquals(new String(readBytes(small.getInputStream()), "UTF-8"), repeat("x", 10));
+
+        final HttpURLConnection notAccepted = openConnection(port, "/?size=1000", null);
+        assertEquals(notAccepted.getHeaderField("Content-Encoding"), null);
+        assertEquals(new String(readBytes(notAccepted.getInputStream()), "UTF-8"), repeat("x", 1000));
+
+        assertEquals(container.getResponseCompression().getCompressedResponses(), 2);
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testResponseCache() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final AtomicInteger handled = new AtomicInteger();
+        final Inflector<ContainerRequestContext, javax.ws.rs.core.Response> inflector = new Inflector<ContainerRequestContext, javax.ws.rs.core.Response>() {
+            @Override
+            public javax.ws.rs.core.Response apply(ContainerRequestContext containerRequestContext) {
+                return javax.ws.rs.core.Response.ok("response " + handled.incrementAndGet())
+                        .header("Cache-Control", "max-age=60")
+                        .header("ETag", "\"v1\"")
+                        .build();
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_RESPONSE_CACHE_SIZE, 1024 * 1024);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        final Response first = client.prepareGet("http://localhost:" + port + "/").execute().get();
+        assertEquals(first.getResponseBody(), "response 1");
+        final Response cached = client.prepareGet("http://localhost:" + port + "/").execute().get();
+        assertEquals(cached.getStatusCode(), 200);
+        assertEquals(cached.getResponseBody(), "response 1");
+        assertEquals(cached.getHeader("ETag"), "\"v1\"");
+        assertTrue(cached.getHeader("Age") != null);
+
+        final Response notModified = client.prepareGet("http://localhost:" + port + "/")
+                .addHeader("If-None-Match", "\"v0\", \"v1\"").execute().get();
+        assertEquals(notModified.getStatusCode(), 304);
+        assertEquals(notModified.getResponseBody(), "");
+
+        final Response otherUri = client.prepareGet("http://localhost:" + port + "/?other").execute().get();
+        assertEquals(otherUri.getResponseBody(), "response 2");
+
+        assertEquals(handled.get(), 2);
+        assertEquals(container.getResponseCache().getHitCount(), 2);
+        assertEquals(container.getResponseCache().getNotModifiedCount(), 1);
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testMetrics() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, String> inflector = new Inflector<ContainerRequestContext, String>() {
+            @Override
+            public String apply(ContainerRequestContext containerRequestContext) {
+                return "hello";
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector));
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(client.prepareGet("http://localhost:" + port + "/").execute().get().getStatusCode(), 200);
+        }
+        assertEquals(client.prepareGet("http://localhost:" + port + "/missing").execute().get().getStatusCode(), 404);
+
+        final DefaultContainerMetrics metrics = (DefaultContainerMetrics) container.getMetrics();
+        // the response may reach the client before the request is recorded as completed, and the handling latency is
+        // recorded once jersey returned, after the response has been written
+        for (int i = 0; i < 500 && (metrics.getRequestsCompleted() < 4 || metrics.getHandlingLatency().getCount() < 4); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(metrics.getRequestsStarted(), 4);
+        assertEquals(metrics.getRequestsCompleted(), 4);
+        assertEquals(metrics.getRequestsInFlight(), 0);
+        assertEquals(metrics.getResponses(2), 3);
+        assertEquals(metrics.getResponses(4), 1);
+        assertTrue(metrics.getBytesWritten() >= 3 * "hello".length());
+        assertEquals(metrics.getRequestLatency().getCount(), 4);
+        assertEquals(metrics.getHandlingLatency().getCount(), 4);
+        long resourceMethodCount = 0;
+        for (Map.Entry<String, LatencyHistogram> latency : metrics.getResourceMethodLatencies().entrySet()) {
+            if (latency.getKey().startsWith("GET ")) {
+                resourceMethodCount += latency.getValue().getCount();
+            }
+        }
+        assertEquals(resourceMethodCount, 3);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testMultiValuedHeaders() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, javax.ws.rs.core.Response> inflector = new Inflector<ContainerRequestContext, javax.ws.rs.core.Response>() {
+            @Override
+            public javax.ws.rs.core.Response apply(ContainerRequestContext containerRequestContext) {
+                return javax.ws.rs.core.Response.ok(containerRequestContext.getHeaders().get("x-test").toString())
+                        .header("Set-Cookie", "a=1")
+                        .header("Set-Cookie", "b=2")
+                        .build();
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector));
+        int port = bindJerseyServer(container, bootstrap);
+
+        final Response response = getHttpClient().prepareGet("http://localhost:" + port + "/")
+                .addHeader("X-Test", "one")
+                .addHeader("X-Test", "two")
+                .execute().get();
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getResponseBody(), "[one, two]");
+        assertEquals(response.getHeaders("Set-Cookie"), ImmutableList.of("a=1", "b=2"));
+        assertTrue(response.getHeader("Date").endsWith(" GMT"), response.getHeader("Date"));
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testSecurityContextCache() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, String> inflector = new Inflector<ContainerRequestContext, String>() {
+            @Override
+            public String apply(ContainerRequestContext containerRequestContext) {
+                final SecurityContext securityContext = containerRequestContext.getSecurityContext();
+                return securityContext.getUserPrincipal().getName() + " " + securityContext.isUserInRole("admin")
+                        + " " + securityContext.getAuthenticationScheme();
+            }
+        };
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger roleChecks = new AtomicInteger();
+        final SecurityContextFactory factory = new DefaultSecurityContextFactory() {
+            @Override
+            public SecurityContext create(String userName, String credential, boolean isSecure, String authcScheme, String host) {
+                created.incrementAndGet();
+                final SecurityContext authenticated = super.create(userName, credential, isSecure, authcScheme, host);
+                return new SecurityContext() {
+                    @Override
+                    public Principal getUserPrincipal() {
+                        return authenticated.getUserPrincipal();
+                    }
+
+                    @Override
+                    public boolean isUserInRole(String role) {
+                        roleChecks.incrementAndGet();
+                        return role.equals("admin");
+                    }
+
+                    @Override
+                    public boolean isSecure() {
+                        return authenticated.isSecure();
+                    }
+
+                    @Override
+                    public String getAuthenticationScheme() {
+                        return authenticated.getAuthenticationScheme();
+                    }
+                };
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_SECURITY_CONTEXT_CACHE_SIZE, 16);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        container.setSecurityContextFactory(factory);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        final String authorization = "Basic " + Base64.encodeAsString("jane%40example.com:secret");
+        for (int i = 0; i < 3; i++) {
+            final Response response = client.prepareGet("http://localhost:" + port + "/")
+                    .addHeader("Authorization", authorization)
+                    .execute().get();
+            assertEquals(response.getStatusCode(), 200);
+            assertEquals(response.getResponseBody(), "jane@example.com true BASIC");
+        }
+        final SecurityContextCache cache = container.getSecurityContextCache();
+        assertEquals(created.get(), 1);
+        // the roles are remembered with the principal
+        assertEquals(roleChecks.get(), 1);
+        assertEquals(cache.getHitCount(), 2);
+        assertEquals(cache.getMissCount(), 1);
+
+        cache.invalidate("jane@example.com");
+        assertEquals(cache.size(), 0);
+        client.prepareGet("http://localhost:" + port + "/").addHeader("Authorization", authorization).execute().get();
+        assertEquals(created.get(), 2);
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testPreEncodedEntities() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final String text = repeat("\u00e4", 1000);
+        final Inflector<ContainerRequestContext, Object> inflector = new Inflector<ContainerRequestContext, Object>() {
+            @Override
+            public Object apply(ContainerRequestContext containerRequestContext) {
+                final String type = containerRequestContext.getUriInfo().getQueryParameters().getFirst("type");
+                try {
+                    switch (type) {
+                        case "string":
+                            return text;
+                        case "bytes":
+                            return text.getBytes("UTF-8");
+                        default:
+                            return ChannelBuffers.wrappedBuffer(text.getBytes("UTF-8"));
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        // too small for jersey to buffer the entities, so they would be chunked without the container encoding them
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, 16);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        for (String type : ImmutableList.of("string", "bytes", "buffer")) {
+            final Response response = client.prepareGet("http://localhost:" + port + "/?type=" + type).execute().get();
+            assertEquals(response.getStatusCode(), 200);
+            assertEquals(response.getHeader("Content-Length"), "2000");
+            assertEquals(response.getHeader("Transfer-Encoding"), null);
+            assertTrue(response.getContentType().startsWith("text/plain"));
+            assertEquals(response.getResponseBody("UTF-8"), text);
+        }
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testFileEntities() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        final File file = File.createTempFile("jersey-netty", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+
+        final Inflector<ContainerRequestContext, Object> inflector = new Inflector<ContainerRequestContext, Object>() {
+            @Override
+            public Object apply(ContainerRequestContext containerRequestContext) {
+                final String type = containerRequestContext.getUriInfo().getQueryParameters().getFirst("type");
+                switch (type) {
+                    case "file":
+                        return file;
+                    case "path":
+                        return file.toPath();
+                    default:
+                        try {
+                            return FileChannel.open(file.toPath(), StandardOpenOption.READ).position(1000);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                }
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector));
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        for (String type : ImmutableList.of("file", "path", "channel")) {
+            final Response response = client.prepareGet("http://localhost:" + port + "/?type=" + type).execute().get();
+            final int offset = type.equals("channel") ? 1000 : 0;
+            assertEquals(response.getStatusCode(), 200);
+            assertEquals(response.getHeader("Content-Length"), String.valueOf(content.length - offset));
+            assertEquals(response.getHeader("Transfer-Encoding"), null);
+            assertEquals(response.getResponseBodyAsBytes(), Arrays.copyOfRange(content, offset, content.length));
+        }
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testRanges() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        final File file = File.createTempFile("jersey-netty", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+
+        final Inflector<ContainerRequestContext, Object> inflector = new Inflector<ContainerRequestContext, Object>() {
+            @Override
+            public Object apply(ContainerRequestContext containerRequestContext) {
+                final String type = containerRequestContext.getUriInfo().getQueryParameters().getFirst("type");
+                return type.equals("file") ? file : content;
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector));
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        for (String type : ImmutableList.of("file", "bytes")) {
+            final String uri = "http://localhost:" + port + "/?type=" + type;
+
+            final Response single = client.prepareGet(uri).addHeader("Range", "bytes=100-199").execute().get();
+            assertEquals(single.getStatusCode(), 206);
+            assertEquals(single.getHeader("Content-Range"), "bytes 100-199/10000");
+            assertEquals(single.getHeader("Content-Length"), "100");
+            assertEquals(single.getResponseBodyAsBytes(), Arrays.copyOfRange(content, 100, 200));
+
+            final Response suffix = client.prepareGet(uri).addHeader("Range", "bytes=-10").execute().get();
+            assertEquals(suffix.getStatusCode(), 206);
+            assertEquals(suffix.getHeader("Content-Range"), "bytes 9990-9999/10000");
+            assertEquals(suffix.getResponseBodyAsBytes(), Arrays.copyOfRange(content, 9990, 10000));
+
+            final Response multipart = client.prepareGet(uri).addHeader("Range", "bytes=0-9,5000-5009").execute().get();
+            assertEquals(multipart.getStatusCode(), 206);
+            assertTrue(multipart.getContentType().startsWith("multipart/byteranges; boundary="));
+            assertEquals(multipart.getHeader("Content-Range"), null);
+            final String body = multipart.getResponseBody("ISO-8859-1");
+            assertEquals(body.length(), Integer.parseInt(multipart.getHeader("Content-Length")));
+            assertTrue(body.contains("Content-Range: bytes 0-9/10000\r\n\r\n"
+                                             + new String(content, 0, 10, "ISO-8859-1")));
+            assertTrue(body.contains("Content-Range: bytes 5000-5009/10000\r\n\r\n"
+                                             + new String(content, 5000, 10, "ISO-8859-1")));
+
+            final Response unsatisfiable = client.prepareGet(uri).addHeader("Range", "bytes=20000-").execute().get();
+            assertEquals(unsatisfiable.getStatusCode(), 416);
+            assertEquals(unsatisfiable.getHeader("Content-Range"), "bytes */10000");
+            assertEquals(unsatisfiable.getHeader("Content-Length"), "0");
+
+            final Response invalid = client.prepareGet(uri).addHeader("Range", "bytes=10-5").execute().get();
+            assertEquals(invalid.getStatusCode(), 200);
+            assertEquals(invalid.getResponseBodyAsBytes(), content);
+
+            final Response changed = client.prepareGet(uri)
+                    .addHeader("Range", "bytes=100-199")
+                    .addHeader("If-Range", "\"outdated\"")
+                    .execute().get();
+            assertEquals(changed.getStatusCode(), 200);
+            assertEquals(changed.getResponseBodyAsBytes(), content);
+        }
+
+        bootstrap.shutdown();
+    }
+
+    @Test
+    public void testSlowClientThrottlesResponse() throws URISyntaxException, IOException, InterruptedException {
+        final int responseSize = 8 * 1024 * 1024;
+        final Inflector<ContainerRequestContext, StreamingOutput> inflector = new Inflector<ContainerRequestContext, StreamingOutput>() {
+            @Override
+            public StreamingOutput apply(ContainerRequestContext containerRequestContext) {
+                return new StreamingOutput() {
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        final byte[] chunk = new byte[8192];
+                        for (int i = 0; i < responseSize / chunk.length; i++) {
+                            output.write(chunk);
+                        }
+                    }
+                };
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_WRITE_BUFFER_HIGH_WATER_MARK, 16 * 1024,
+                NettyContainer.PROPERTY_WRITE_BUFFER_LOW_WATER_MARK, 8 * 1024);
+        final NettyContainer container = getNettyContainer(getResource("GET", inflector), properties);
+        bootstrap.setOption("child.sendBufferSize", 8192);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", port));
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+        // let the server run into the full socket buffers before reading anything
+        Thread.sleep(500);
+        assertTrue(container.getResponseWriteThrottle().getThrottledCount() > 0);
+
+        final long received = countBytes(socket.getInputStream());
+        assertTrue(received > responseSize, "received " + received);
+        socket.close();
+        assertTrue(container.getResponseWriteThrottle().getThrottledNanos() > 0);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Path("/")
+    public static class SuspendingResource {
+        @GET
+        @Path("timeout")
+        public void timeout(@Suspended AsyncResponse response) {
+            response.setTimeout(200, TimeUnit.MILLISECONDS);
+        }
+
+        @GET
+        @Path("resume")
+        public void resume(@Suspended final AsyncResponse response) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ignored) {
+                    }
+                    response.resume("resumed");
+                }
+            }.start();
+        }
+    }
+
+    @Test
+    public void testSuspendedResponse() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final NettyContainer container = getNettyContainer(Resource.from(SuspendingResource.class));
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        final Response resumed = client.prepareGet("http://localhost:" + port + "/resume").execute().get();
+        assertEquals(resumed.getStatusCode(), 200);
+        assertEquals(resumed.getResponseBody(), "resumed");
+
+        final Response timedOut = client.prepareGet("http://localhost:" + port + "/timeout").execute().get();
+        assertEquals(timedOut.getStatusCode(), 503);
+        assertEquals(container.getSuspendedResponses(), 0);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Path("/")
+    public static class PipeliningResource {
+        static final int LARGE_SIZE = 4 * 1024 * 1024;
+        static volatile CountDownLatch gate = new CountDownLatch(0);
+        static final AtomicLong largeWritten = new AtomicLong();
+
+        @GET
+        @Path("gated")
+        public String gated() throws InterruptedException {
+            gate.await(10, TimeUnit.SECONDS);
+            return "gated";
+        }
+
+        @GET
+        @Path("large")
+        public StreamingOutput large() {
+            return new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    final byte[] chunk = new byte[8192];
+                    Arrays.fill(chunk, (byte) 'l');
+                    for (int i = 0; i < LARGE_SIZE / chunk.length; i++) {
+                        output.write(chunk);
+                        largeWritten.addAndGet(chunk.length);
+                    }
+                }
+            };
+        }
+
+        @GET
+        @Path("slow")
+        public String slow() throws InterruptedException {
+            Thread.sleep(200);
+            return "slow";
+        }
+
+        @GET
+        @Path("fast")
+        public String fast() {
+            return "fast";
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesAreOrdered() throws URISyntaxException, IOException {
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_EXECUTOR_THREADS, 4);
+        final NettyContainer container = getNettyContainer(Resource.from(PipeliningResource.class), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write(("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /fast HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = socket.getInputStream().read(buffer)) != -1) {
+            received.write(buffer, 0, read);
+        }
+        socket.close();
+
+        final String responses = received.toString("US-ASCII");
+        final int slow = responses.indexOf("slow");
+        final int fast = responses.indexOf("fast");
+        assertTrue(slow >= 0 && fast > slow, responses);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testHeldBackResponsesAreThrottled() throws URISyntaxException, IOException, InterruptedException {
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_EXECUTOR_THREADS, 4,
+                NettyContainer.PROPERTY_MAX_HELD_BACK_RESPONSE_BYTES, 64 * 1024);
+        final NettyContainer container = getNettyContainer(Resource.from(PipeliningResource.class), properties);
+        int port = bindJerseyServer(container, bootstrap);
+        PipeliningResource.gate = new CountDownLatch(1);
+        PipeliningResource.largeWritten.set(0);
+
+        final Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write(("GET /gated HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /large HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        Thread.sleep(500);
+        // the large response waits behind the gated one instead of being buffered completely
+        final long writtenWhileHeldBack = PipeliningResource.largeWritten.get();
+        assertTrue(writtenWhileHeldBack < 256 * 1024, "written while held back: " + writtenWhileHeldBack);
+
+        PipeliningResource.gate.countDown();
+        final byte[] received = readBytes(socket.getInputStream());
+        socket.close();
+        final String responses = new String(received, "US-ASCII");
+        final int gated = responses.indexOf("gated");
+        final int large = responses.indexOf("llll");
+        assertTrue(gated >= 0 && large > gated, responses.substring(0, Math.min(responses.length(), 500)));
+        assertEquals(PipeliningResource.largeWritten.get(), PipeliningResource.LARGE_SIZE);
+        assertTrue(received.length > PipeliningResource.LARGE_SIZE);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testContainerResponsesArePipelined() throws URISyntaxException, IOException {
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_EXECUTOR_THREADS, 4);
+        final NettyContainer container = getNettyContainer(Resource.from(PipeliningResource.class), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        // the 400 to the invalid request must not overtake the response to the slow one
+        final Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write(("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                + "GET /a%zz HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("US-ASCII"));
+        final String responses = new String(readBytes(socket.getInputStream()), "US-ASCII");
+        socket.close();
+
+        final int slow = responses.indexOf("slow");
+        final int badRequest = responses.indexOf("400 Bad Request");
+        assertTrue(slow >= 0 && badRequest > slow, responses);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testFixedRequestExecutor()throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        Inflector<ContainerRequestContext, ChunkedOutput<?>> inflector = new Inflector<ContainerRequestContext, ChunkedOutput<?>>() {
+
+            @Override
+            public ChunkedOutput<String> apply(ContainerRequestContext containerRequestContext) {
+                final ChunkedOutput<String> output = new ChunkedOutput<String>(String.class);
+                try {
+                    output.write(Thread.currentThread().getName());
+                    output.close();
+                } catch (IOException e) {
+                    fail("writing failed", e);
+                }
+                return output;
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_EXECUTOR_THREADS, 2);
+        final NettyContainer container = getNettyContainer(getResource(inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final Response response = getHttpClient().prepareGet("http://localhost:" + port + "/").execute().get();
+        assertEquals(response.getStatusCode(), 200);
+        assertTrue(response.getResponseBody().startsWith("jersey-netty-request-"));
+        assertEquals(container.getRequestDispatcher().getDispatchedCount(), 1);
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testStreamingRequestBody() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, String> inflector = new Inflector<ContainerRequestContext, String>() {
+            @Override
+            public String apply(ContainerRequestContext containerRequestContext) {
+                assertTrue(containerRequestContext.getEntityStream() instanceof StreamingRequestBody);
+                try {
+                    return String.valueOf(countBytes(containerRequestContext.getEntityStream()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_STREAM_REQUEST_BODIES, true,
+                NettyContainer.PROPERTY_REQUEST_BODY_WINDOW, 16 * 1024);
+        final NettyContainer container = getNettyContainer(getResource("POST", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final byte[] body = repeat("x", 1024 * 1024).getBytes("UTF-8");
+        final Response response = getHttpClient().preparePost("http://localhost:" + port + "/")
+                .setBody(body)
+                .execute().get();
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getResponseBody(), String.valueOf(body.length));
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testRequestDecompression() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, String> inflector = new Inflector<ContainerRequestContext, String>() {
+            @Override
+            public String apply(ContainerRequestContext containerRequestContext) {
+                assertEquals(containerRequestContext.getHeaderString("Content-Encoding"), null);
+                try {
+                    return String.valueOf(countBytes(containerRequestContext.getEntityStream()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_EXECUTOR, NettyContainer.EXECUTOR_FIXED,
+                NettyContainer.PROPERTY_STREAM_REQUEST_BODIES, true,
+                NettyContainer.PROPERTY_REQUEST_DECOMPRESSION, true);
+        final NettyContainer container = getNettyContainer(getResource("POST", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(body);
+        gzip.write(repeat("x", 1024 * 1024).getBytes("UTF-8"));
+        gzip.close();
+        final Response response = getHttpClient().preparePost("http://localhost:" + port + "/")
+                .addHeader("Content-Encoding", "gzip")
+                .setBody(body.toByteArray())
+                .execute().get();
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getResponseBody(), String.valueOf(1024 * 1024));
+
+        bootstrap.shutdown();
+        container.shutdown();
+    }
+
+    @Test
+    public void testRequestBodySizeLimit() throws URISyntaxException, IOException, ExecutionException, InterruptedException {
+        final Inflector<ContainerRequestContext, String> inflector = new Inflector<ContainerRequestContext, String>() {
+            @Override
+            public String apply(ContainerRequestContext containerRequestContext) {
+                try {
+                    return String.valueOf(countBytes(containerRequestContext.getEntityStream()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final ServerBootstrap bootstrap = getServerBootstrap();
+        final Map<String, Object> properties = ImmutableMap.<String, Object>of(
+                NettyContainer.PROPERTY_MAX_REQUEST_BODY_SIZE, 64 * 1024);
+        final NettyContainer container = getNettyContainer(getResource("POST", inflector), properties);
+        int port = bindJerseyServer(container, bootstrap);
+
+        final AsyncHttpClient client = getHttpClient();
+        final Response accepted = client.preparePost("http://localhost:" + port + "/")
+                .setBody(new byte[32 * 1024])
+                .execute().get();
+        assertEquals(accepted.getStatusCode(), 200);
+        assertEquals(accepted.getResponseBody(), String.valueOf(32 * 1024));
+
+        final Response rejected = client.preparePost("http://localhost:" + port + "/")
+                .setBody(new byte[128 * 1024])
+                .execute().get();
+        assertEquals(rejected.getStatusCode(), 413);
+        // the body is released right after the response has been written
+        for (int i = 0; i < 100 && container.getRequestBodyBudget().getUsed() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(container.getRequestBodyBudget().getUsed(), 0);
+
+        bootstrap.shutdown();
+    }
+
+    private static HttpURLConnection openConnection(int port, String path, String acceptEncoding) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return connection;
+    }
+
+    private static byte[] readBytes(InputStream stream) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static long countBytes(InputStream stream) throws IOException {
+        final byte[] buffer = new byte[4096];
+        long total = 0;
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
     private String repeat(final String string, final int count) {
         final StringBuilder sb = new StringBuilder(string.length() * count);
         for (int i = 0; i < count; i++) {
@@ -311,17 +1244,26 @@ public class NettyContainerTest {
     }
 
     private Resource getResource(Inflector<ContainerRequestContext, ChunkedOutput<?>> inflector) {
+        return getResource("GET", inflector);
+    }
+
+    private Resource getResource(String httpMethod, Inflector<ContainerRequestContext, ?> inflector) {
         final Resource.Builder resourceBuilder = Resource.builder();
         resourceBuilder.path("/");
-        final ResourceMethod.Builder methodBuilder = resourceBuilder.addMethod("GET");
+        final ResourceMethod.Builder methodBuilder = resourceBuilder.addMethod(httpMethod);
         methodBuilder.produces(MediaType.TEXT_PLAIN_TYPE)
                 .handledBy(inflector);
         return resourceBuilder.build();
     }
 
     private NettyContainer getNettyContainer(Resource resource, Class... classes) throws URISyntaxException {
+        return getNettyContainer(resource, ImmutableMap.<String, Object>of(), classes);
+    }
+
+    private NettyContainer getNettyContainer(Resource resource, Map<String, Object> properties, Class... classes) throws URISyntaxException {
         ResourceConfig rc = new ResourceConfig()
-                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http:/localhost:0"))
+                .addProperties(properties)
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
                 .registerResources(resource)
                 .registerInstances(new NettyContainerProvider())
                 .register(JacksonJsonProvider.class);
@@ -343,6 +1285,10 @@ public class NettyContainerTest {
                                  ServerBootstrap bootstrap, Class... classes) throws URISyntaxException {
         final Resource resource = getResource(inflector);
         final NettyContainer jerseyHandler = getNettyContainer(resource, classes);
+        return bindJerseyServer(jerseyHandler, bootstrap);
+    }
+
+    private int bindJerseyServer(NettyContainer jerseyHandler, ServerBootstrap bootstrap) {
         setChunkedHttpPipeline(bootstrap, jerseyHandler);
 
         final Channel bind = bootstrap.bind(new InetSocketAddress(0));
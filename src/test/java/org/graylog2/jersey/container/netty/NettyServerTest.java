@@ -0,0 +1,153 @@
+package org.graylog2.jersey.container.netty;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.jboss.netty.channel.ChannelException;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class NettyServerTest {
+
+    @Path("/")
+    public static class HelloResource {
+        @GET
+        @Produces(MediaType.TEXT_PLAIN)
+        public String hello() {
+            return "hello";
+        }
+    }
+
+    @Test
+    public void testServesContainer() throws Exception {
+        final NettyContainer container = new NettyContainer(new ResourceConfig()
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
+                .register(HelloResource.class));
+        final NettyServer server = NettyServer.builder(container)
+                .highConcurrencyApi()
+                .workerThreads(2)
+                .build();
+        final InetSocketAddress address = (InetSocketAddress) server.start(new InetSocketAddress("127.0.0.1", 0));
+        assertTrue(address.getPort() > 0);
+
+        final AsyncHttpClient client = new AsyncHttpClient();
+        try {
+            final Response response = client.prepareGet("http://127.0.0.1:" + address.getPort() + "/").execute().get();
+            assertEquals(response.getStatusCode(), 200);
+            assertEquals(response.getResponseBody(), "hello");
+        } finally {
+            client.close();
+            server.stop();
+            container.shutdown();
+        }
+        assertNull(server.getLocalAddress());
+        assertEquals(server.getConnections(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testStartTwice() throws Exception {
+        final NettyContainer container = new NettyContainer(new ResourceConfig()
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
+                .register(HelloResource.class));
+        final NettyServer server = NettyServer.builder(container).build();
+        server.start(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            server.start(new InetSocketAddress("127.0.0.1", 0));
+        } finally {
+            server.stop();
+            container.shutdown();
+        }
+    }
+
+    @Test
+    public void testStartOnOccupiedPort() throws Exception {
+        final NettyContainer container = new NettyContainer(new ResourceConfig()
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
+                .register(HelloResource.class));
+        final NettyServer server = NettyServer.builder(container).reuseAddress(false).build();
+        final ServerSocket occupied = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        try {
+            try {
+                server.start(new InetSocketAddress("127.0.0.1", occupied.getLocalPort()));
+                fail("Bound an occupied port");
+            } catch (ChannelException e) {
+                assertNull(server.getLocalAddress());
+            }
+            occupied.close();
+            // nothing is left over from the failed attempt
+            final InetSocketAddress address = (InetSocketAddress) server.start(new InetSocketAddress("127.0.0.1", 0));
+            assertTrue(address.getPort() > 0);
+        } finally {
+            occupied.close();
+            server.stop();
+            container.shutdown();
+        }
+    }
+
+    @Test
+    public void testDecoderLimits() throws Exception {
+        final NettyContainer container = new NettyContainer(new ResourceConfig()
+                .property(NettyContainer.PROPERTY_BASE_URI, new URI("http://localhost:0/"))
+                .register(HelloResource.class));
+        final NettyServer server = NettyServer.builder(container).decoderLimits(4096, 1024, 8192).build();
+        final int port = ((InetSocketAddress) server.start(new InetSocketAddress("127.0.0.1", 0))).getPort();
+        try {
+            final String header = send(port, "GET / HTTP/1.1\r\nHost: localhost\r\nX-Large: " + repeat('x', 3000) + "\r\n\r\n");
+            assertTrue(header.startsWith("HTTP/1.0 431 "), header);
+            assertFalse(header.contains("TooLongFrameException"), header);
+
+            final String line = send(port, "GET /" + repeat('x', 5000) + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(line.startsWith("HTTP/1.0 414 "), line);
+
+            // the connections of other clients are fine
+            final String hello = send(port, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            assertTrue(hello.startsWith("HTTP/1.1 200 ") && hello.endsWith("hello"), hello);
+        } finally {
+            server.stop();
+            container.shutdown();
+        }
+    }
+
+    private static String send(int port, String request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = socket.getInputStream().read(buffer)) != -1) {
+                received.write(buffer, 0, read);
+            }
+            return received.toString("US-ASCII");
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWaterMarksOutOfOrder() {
+        NettyServer.builder(new NettyContainer(new ResourceConfig())).writeBufferWaterMarks(64 * 1024, 32 * 1024);
+    }
+}
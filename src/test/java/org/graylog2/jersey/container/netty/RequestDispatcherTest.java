@@ -0,0 +1,92 @@
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.DefaultChannelPipeline;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RequestDispatcherTest {
+    private Channel newChannel() {
+        DefaultLocalClientChannelFactory channelFactory = new DefaultLocalClientChannelFactory();
+        DefaultChannelPipeline pipeline = new DefaultChannelPipeline();
+        return channelFactory.newChannel(pipeline);
+    }
+
+    @Test
+    public void directDispatcherRunsTaskInline() {
+        final RequestDispatcher dispatcher = RequestDispatcher.direct();
+        final Thread[] runner = new Thread[1];
+        dispatcher.dispatch(new ChannelState(newChannel()), new Runnable() {
+            @Override
+            public void run() {
+                runner[0] = Thread.currentThread();
+            }
+        });
+
+        assertEquals(runner[0], Thread.currentThread());
+        assertEquals(dispatcher.getDispatchedCount(), 1);
+        assertEquals(dispatcher.getQueueDepth(), 0);
+    }
+
+    @Test
+    public void fullQueueSuspendsReadsUntilDrained() throws InterruptedException {
+        final RequestDispatcher dispatcher = RequestDispatcher.fixed(1, 1);
+        final ChannelState state = new ChannelState(newChannel());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        try {
+            assertTrue(dispatcher.dispatch(state, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                    done.countDown();
+                }
+            }));
+
+            assertEquals(dispatcher.getQueueDepth(), 1);
+            assertTrue(state.isReadSuspended(ChannelState.SUSPENDED_BY_DISPATCHER));
+            assertEquals(dispatcher.getReadSuspensionCount(), 1);
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 50 && dispatcher.getQueueDepth() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(dispatcher.getQueueDepth(), 0);
+            assertFalse(state.isReadSuspended(ChannelState.SUSPENDED_BY_DISPATCHER));
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectedTasksAreCounted() {
+        final RequestDispatcher dispatcher = RequestDispatcher.forExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, 10);
+
+        assertFalse(dispatcher.dispatch(new ChannelState(newChannel()), new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+        assertEquals(dispatcher.getRejectedCount(), 1);
+        assertEquals(dispatcher.getQueueDepth(), 0);
+    }
+}
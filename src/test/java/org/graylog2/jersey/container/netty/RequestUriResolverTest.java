@@ -0,0 +1,71 @@
+package org.graylog2.jersey.container.netty;
+
+import org.testng.annotations.Test;
+
+import java.net.URI;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RequestUriResolverTest {
+    private static final String[] REQUEST_URIS = {
+            "/",
+            "/api/system",
+            "/api/search?query=foo%20bar&limit=10",
+            "/api/users/jane@example.com",
+            "/a/./b/../c",
+            "/a/..",
+            "/a?path=/../",
+            "//other-host/a",
+            "http://other-host/a",
+            "/a#fragment",
+            "relative/path",
+            "",
+    };
+
+    @Test
+    public void testResolvesLikeUri() {
+        for (String base : new String[]{"http://localhost:12900/", "https://example.com:443/api/", "http:/localhost:0"}) {
+            final URI baseUri = URI.create(base);
+            final RequestUriResolver resolver = new RequestUriResolver(baseUri, 0);
+            for (String requestUri : REQUEST_URIS) {
+                assertEquals(resolver.resolve(requestUri), baseUri.resolve(requestUri), base + " " + requestUri);
+            }
+        }
+    }
+
+    @Test
+    public void testFastPath() {
+        assertTrue(RequestUriResolver.isPlainAbsolutePath("/api/search?query=a.b&from=./x"));
+        assertTrue(RequestUriResolver.isPlainAbsolutePath("/a/b.json"));
+        assertFalse(RequestUriResolver.isPlainAbsolutePath("/a/./b"));
+        assertFalse(RequestUriResolver.isPlainAbsolutePath("//host/a"));
+        assertFalse(RequestUriResolver.isPlainAbsolutePath("/a b"));
+        assertFalse(RequestUriResolver.isPlainAbsolutePath("/ä"));
+        assertFalse(RequestUriResolver.isPlainAbsolutePath("a"));
+    }
+
+    @Test
+    public void testInvalidUri() {
+        final RequestUriResolver resolver = new RequestUriResolver(URI.create("http://localhost:12900/"), 0);
+        try {
+            resolver.resolve("/a%zz");
+            fail("invalid escape must not be accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCache() {
+        final RequestUriResolver resolver = new RequestUriResolver(URI.create("http://localhost:12900/"), 2);
+        final URI first = resolver.resolve("/a");
+        assertSame(resolver.resolve("/a"), first);
+        resolver.resolve("/b");
+        resolver.resolve("/c");
+        assertEquals(resolver.resolve("/a"), first);
+    }
+}
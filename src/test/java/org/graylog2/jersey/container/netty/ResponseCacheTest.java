@@ -0,0 +1,177 @@
+package org.graylog2.jersey.container.netty;
+
+import org.glassfish.jersey.internal.util.Base64;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testMaxAge() {
+        assertEquals(ResponseCache.maxAge(Collections.<String>emptyList()), 0);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("public, max-age=60")), 60);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("max-age=60, s-maxage=10")), 10);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("max-age=60", "no-store")), 0);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("no-cache, max-age=60")), 0);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("max-age=soon")), 0);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("private, max-age=60")), 0);
+        assertEquals(ResponseCache.maxAge(Arrays.asList("max-age=60, private=\"Set-Cookie\"")), 0);
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(ResponseCache.matches("\"a\"", "\"a\""));
+        assertTrue(ResponseCache.matches("\"b\", W/\"a\"", "\"a\""));
+        assertTrue(ResponseCache.matches("\"a\"", "W/\"a\""));
+        assertTrue(ResponseCache.matches("*", "\"a\""));
+        assertFalse(ResponseCache.matches("\"b\"", "\"a\""));
+        assertFalse(ResponseCache.matches(null, "\"a\""));
+    }
+
+    @Test
+    public void testKey() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        final HttpRequest json = request("/a");
+        json.headers().set("Accept", "application/json");
+        assertEquals(cache.key(json), cache.key(json));
+        assertFalse(cache.key(json).equals(cache.key(request("/a"))));
+        assertNull(cache.key(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/a")));
+    }
+
+    @Test
+    public void testCredentialsKey() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        final ResponseCache.Key anonymous = cache.key(request("/a"));
+        final ResponseCache.Key victim = cache.key(authorized("/a", "victim:secret"));
+        assertEquals(victim, cache.key(authorized("/a", "victim:secret")));
+        assertFalse(victim.equals(anonymous));
+        // the user name alone, which is all the default security context looks at, must not be enough
+        assertFalse(victim.equals(cache.key(authorized("/a", "victim:wrong"))));
+
+        cache.put(victim, response(100, "max-age=60"));
+        assertNotNull(cache.get(victim, authorized("/a", "victim:secret"), HttpVersion.HTTP_1_1));
+        final HttpRequest guess = authorized("/a", "victim:wrong");
+        assertNull(cache.get(cache.key(guess), guess, HttpVersion.HTTP_1_1));
+    }
+
+    @Test
+    public void testCookies() {
+        final HttpRequest withCookie = request("/a");
+        withCookie.headers().set("Cookie", "session=1");
+        assertNull(new ResponseCache(1024, "Accept").key(withCookie));
+
+        final ResponseCache cookieCache = new ResponseCache(1024, "Accept,Cookie");
+        final HttpRequest otherCookie = request("/a");
+        otherCookie.headers().set("Cookie", "session=2");
+        assertNotNull(cookieCache.key(withCookie));
+        assertFalse(cookieCache.key(withCookie).equals(cookieCache.key(otherCookie)));
+    }
+
+    @Test
+    public void testCaching() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        final ResponseCache.Key key = cache.key(request("/a"));
+        assertNull(cache.get(key, request("/a"), HttpVersion.HTTP_1_1));
+
+        cache.put(key, response(100, "max-age=60"));
+        final HttpResponse cached = cache.get(key, request("/a"), HttpVersion.HTTP_1_1);
+        assertNotNull(cached);
+        assertEquals(cached.getContent().readableBytes(), 100);
+        // the cached body is not consumed by reading a response
+        cached.getContent().skipBytes(100);
+        assertEquals(cache.get(key, request("/a"), HttpVersion.HTTP_1_1).getContent().readableBytes(), 100);
+
+        cache.invalidate("/a");
+        assertNull(cache.get(key, request("/a"), HttpVersion.HTTP_1_1));
+        assertEquals(cache.getBytes(), 0);
+
+        // the path is invalidated whatever the query
+        final ResponseCache.Key query = cache.key(request("/a?page=2"));
+        cache.put(query, response(100, "max-age=60"));
+        cache.put(cache.key(request("/b")), response(100, "max-age=60"));
+        cache.invalidate("/a?id=1");
+        assertNull(cache.get(query, request("/a?page=2"), HttpVersion.HTTP_1_1));
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testUncacheableResponses() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        final ResponseCache.Key key = cache.key(request("/a"));
+        cache.put(key, response(100, "no-store"));
+        cache.put(key, response(100, null));
+        cache.put(key, response(1000, "max-age=60"));
+        final HttpResponse varying = response(100, "max-age=60");
+        varying.headers().set("Vary", "Cookie");
+        cache.put(key, varying);
+        cache.put(key, response(100, "private, max-age=60"));
+        final HttpResponse settingCookie = response(100, "max-age=60");
+        settingCookie.headers().set("Set-Cookie", "session=1");
+        cache.put(key, settingCookie);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testNotModified() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        final ResponseCache.Key key = cache.key(request("/a"));
+        final HttpResponse response = response(100, "max-age=60");
+        response.headers().set("ETag", "\"v1\"");
+        cache.put(key, response);
+
+        final HttpRequest conditional = request("/a");
+        conditional.headers().set("If-None-Match", "\"v1\"");
+        final HttpResponse notModified = cache.get(key, conditional, HttpVersion.HTTP_1_1);
+        assertEquals(notModified.getStatus(), HttpResponseStatus.NOT_MODIFIED);
+        assertEquals(notModified.headers().get("ETag"), "\"v1\"");
+        assertFalse(notModified.getContent().readable());
+        assertEquals(cache.getNotModifiedCount(), 1);
+    }
+
+    @Test
+    public void testEviction() {
+        final ResponseCache cache = new ResponseCache(1024, "Accept");
+        for (int i = 0; i < 10; i++) {
+            cache.put(cache.key(request("/" + i)), response(200, "max-age=60"));
+        }
+        assertTrue(cache.getBytes() <= 1024);
+        assertTrue(cache.getEvictionCount() > 0);
+        assertNotNull(cache.get(cache.key(request("/9")), request("/9"), HttpVersion.HTTP_1_1));
+        assertNull(cache.get(cache.key(request("/0")), request("/0"), HttpVersion.HTTP_1_1));
+    }
+
+    private static HttpRequest request(String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private static HttpRequest authorized(String uri, String credentials) {
+        final HttpRequest request = request(uri);
+        request.headers().set("Authorization", "Basic " + Base64.encodeAsString(credentials));
+        return request;
+    }
+
+    private static HttpResponse response(int length, String cacheControl) {
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        if (cacheControl != null) {
+            response.headers().set("Cache-Control", cacheControl);
+        }
+        response.setContent(ChannelBuffers.wrappedBuffer(new byte[length]));
+        return response;
+    }
+}
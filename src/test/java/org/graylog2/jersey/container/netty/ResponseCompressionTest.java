@@ -0,0 +1,72 @@
+package org.graylog2.jersey.container.netty;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ResponseCompressionTest {
+
+    @Test
+    public void testNegotiate() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate(""));
+        assertNull(ResponseCompression.negotiate("identity"));
+        assertEquals(ResponseCompression.negotiate("gzip"), "gzip");
+        assertEquals(ResponseCompression.negotiate("x-gzip"), "gzip");
+        assertEquals(ResponseCompression.negotiate("deflate"), "deflate");
+        assertEquals(ResponseCompression.negotiate("gzip, deflate, sdch"), "gzip");
+        assertEquals(ResponseCompression.negotiate("gzip;q=0.5, deflate"), "deflate");
+        assertEquals(ResponseCompression.negotiate("GZIP ; q=1.0"), "gzip");
+        assertNull(ResponseCompression.negotiate("gzip;q=0"));
+        assertEquals(ResponseCompression.negotiate("*"), "gzip");
+        assertEquals(ResponseCompression.negotiate("gzip;q=0, *"), "deflate");
+        assertNull(ResponseCompression.negotiate("*;q=0"));
+    }
+
+    @Test
+    public void testIsCompressible() {
+        final ResponseCompression compression = new ResponseCompression(6, 100, "image/*, application/zip");
+        assertTrue(compression.isCompressible(MediaType.APPLICATION_JSON_TYPE, 100));
+        assertTrue(compression.isCompressible(MediaType.APPLICATION_JSON_TYPE, -1));
+        assertTrue(compression.isCompressible(null, 1000));
+        assertFalse(compression.isCompressible(MediaType.APPLICATION_JSON_TYPE, 99));
+        assertFalse(compression.isCompressible(MediaType.valueOf("image/png"), 1000));
+        assertFalse(compression.isCompressible(MediaType.valueOf("application/zip"), 1000));
+    }
+
+    @Test
+    public void testCompress() throws IOException {
+        final ResponseCompression compression = new ResponseCompression(9, 0, null);
+        final byte[] entity = new byte[10000];
+        final ChannelBuffer gzipped = compression.compress(ChannelBuffers.wrappedBuffer(entity), ResponseCompression.GZIP);
+        assertTrue(gzipped.readableBytes() < entity.length);
+        assertEquals(readFully(new GZIPInputStream(new ChannelBufferInputStream(gzipped))), entity);
+
+        final ChannelBuffer deflated = compression.compress(ChannelBuffers.wrappedBuffer(entity), ResponseCompression.DEFLATE);
+        assertEquals(readFully(new InflaterInputStream(new ChannelBufferInputStream(deflated))), entity);
+        assertEquals(compression.getCompressedResponses(), 2);
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
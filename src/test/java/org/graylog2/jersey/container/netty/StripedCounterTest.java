@@ -0,0 +1,30 @@
+package org.graylog2.jersey.container.netty;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(-1);
+        assertEquals(counter.sum(), threads.length * 100000L - 1);
+    }
+}